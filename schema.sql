@@ -6,9 +6,10 @@ CREATE TABLE GRID_CELL (
     LEVEL integer NOT NULL,
     GEOM geometry(Geometry,4326) NOT NULL,
     PROJ integer NOT NULL,
-    HASH integer NOT NULL UNIQUE,
+    HASH bigint NOT NULL,
     INFO jsonb,
-    CONSTRAINT PK_GRID_CELL PRIMARY KEY (ID)
+    CONSTRAINT PK_GRID_CELL PRIMARY KEY (ID),
+    CONSTRAINT UK_GRID_CELL_HASH UNIQUE (PROJ, HASH)
 );
 
 
@@ -16,3 +17,13 @@ CREATE TABLE GRID_CELL (
 
 
 CREATE INDEX IDX_GRID_CELL_GEOM ON GRID_CELL USING GIST(GEOM);
+
+
+-- Used to migrate a GRID_CELL table created with an earlier version of this
+-- schema (integer HASH, unique across all projections). Note that hashes in
+-- the old table are not cell keys so existing cells should be deleted and
+-- regenerated (e.g. using the -clear option).
+--
+-- ALTER TABLE GRID_CELL DROP CONSTRAINT IF EXISTS GRID_CELL_HASH_KEY;
+-- ALTER TABLE GRID_CELL ALTER COLUMN HASH TYPE bigint;
+-- ALTER TABLE GRID_CELL ADD CONSTRAINT UK_GRID_CELL_HASH UNIQUE (PROJ, HASH);
@@ -0,0 +1,98 @@
+package com.kartographia.grid;
+import java.util.*;
+import java.util.concurrent.*;
+
+//******************************************************************************
+//**  BatchQueue
+//******************************************************************************
+/**
+ *   Bounded queue used to hand off batches of work between threads. Items
+ *   are passed in batches (e.g. a column of grid cells) rather than one at a
+ *   time so producers and consumers rarely touch the queue. The queue itself
+ *   is a lock-free ConcurrentLinkedQueue. A pair of semaphores is used to
+ *   bound the number of batches in the queue (backpressure) and to park idle
+ *   consumers. Threads only block when the queue is full or empty.
+ *
+ ******************************************************************************/
+
+public class BatchQueue<T> {
+
+    private final ConcurrentLinkedQueue<List<T>> batches = new ConcurrentLinkedQueue<>();
+    private final Semaphore capacity;
+    private final Semaphore available = new Semaphore(0);
+    private final List<T> EOF = new ArrayList<>(0);
+    private volatile boolean closed = false;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param maxBatches Max number of batches that can be queued before a
+   *  call to put() will block.
+   */
+    public BatchQueue(int maxBatches){
+        if (maxBatches<1) maxBatches = 1;
+        capacity = new Semaphore(maxBatches);
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to add a batch of items to the queue. Blocks if the queue is full.
+   */
+    public void put(List<T> batch) throws InterruptedException {
+        if (closed) throw new IllegalStateException("Queue is closed");
+        if (batch==null || batch.isEmpty()) return;
+        capacity.acquire();
+        batches.add(batch);
+        available.release();
+    }
+
+
+  //**************************************************************************
+  //** take
+  //**************************************************************************
+  /** Returns the next batch in the queue. Blocks until a batch is available.
+   *  Returns null once the queue has been closed and all the batches have
+   *  been consumed.
+   */
+    public List<T> take() throws InterruptedException {
+        available.acquire();
+        List<T> batch = batches.poll();
+        if (batch==EOF){
+
+          //Put the end-of-stream marker back for the other consumers
+            batches.add(EOF);
+            available.release();
+            return null;
+        }
+        capacity.release();
+        return batch;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to signal that no more batches will be added to the queue.
+   *  Consumers will continue to receive batches until the queue is empty.
+   */
+    public void close(){
+        if (closed) return;
+        closed = true;
+        batches.add(EOF);
+        available.release();
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of batches in the queue.
+   */
+    public int size(){
+        int n = available.availablePermits();
+        return closed ? Math.max(n-1, 0) : n;
+    }
+}
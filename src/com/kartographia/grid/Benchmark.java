@@ -0,0 +1,1127 @@
+package com.kartographia.grid;
+import com.vividsolutions.jts.geom.*;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+//******************************************************************************
+//**  Benchmark
+//******************************************************************************
+/**
+ *   Used to measure the throughput of individual stages of the GridBuilder.
+ *   Benchmarks are run from the command line via the "-benchmark" option.
+ *   Each benchmark runs a warm up pass before it is measured. Throughput is
+ *   reported in cells (or items) per second. Some benchmarks also report the
+ *   number of bytes allocated per cell using the HotSpot ThreadMXBean.
+ *   Example:
+ *   <pre>java -jar grid.jar -benchmark grid -level 4 -t 8</pre>
+ *
+ ******************************************************************************/
+
+public class Benchmark {
+
+    private static final int[] SHAPES = new int[]{
+        GridBuilder.SQUARE_SHAPE, GridBuilder.HEX_SHAPE, GridBuilder.DIAMOND_SHAPE
+    };
+
+
+  //**************************************************************************
+  //** run
+  //**************************************************************************
+  /** Used to run a benchmark
+   *  @param args Command line arguments:
+   *  -benchmark Name of the benchmark to run (queue, transform, locate,
+   *  neighbors, hierarchy, cover, aggregate, grid, cell, aoi, deep)
+   *  -t Number of threads. If not specified, will run the benchmark using
+   *  1, 2, 4, 8, and 16 threads
+   *  -n Number of items to process
+   *  -density Vertex density used to generate cells
+   *  -heap Max peak heap in MB. Used by the deep benchmark
+   *  -rate Min cells/sec. Used by the deep benchmark
+   *  -level Grid level. Used by the grid, cell, aoi, hierarchy, and cover
+   *  benchmarks
+   *  -proj Projection used by the grid, cell, aoi, hierarchy, cover, and deep
+   *  benchmarks. If not specified, will run the benchmark using 3857 and
+   *  54017
+   */
+    public static void run(HashMap<String, String> args) throws Exception {
+        String benchmark = args.get("-benchmark");
+        if (benchmark==null) benchmark = "";
+
+        int[] threads = args.containsKey("-t") ?
+            new int[]{Integer.parseInt(args.get("-t"))} :
+            new int[]{1, 2, 4, 8, 16};
+
+
+        if (benchmark.equalsIgnoreCase("queue")){
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 5000000;
+            queue(n, threads);
+        }
+        else if (benchmark.equalsIgnoreCase("transform")){
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 200000;
+            double density = args.containsKey("-density") ? Double.parseDouble(args.get("-density")) : 1;
+            transform(n, density);
+        }
+        else if (benchmark.equalsIgnoreCase("grid")){
+            int[] levels = args.containsKey("-level") ?
+                new int[]{Integer.parseInt(args.get("-level"))} :
+                new int[]{2, 3, 4};
+            grid(getProjections(args), levels, threads);
+        }
+        else if (benchmark.equalsIgnoreCase("cell")){
+            int level = args.containsKey("-level") ? Integer.parseInt(args.get("-level")) : 3;
+            double[] densities = args.containsKey("-density") ?
+                new double[]{Double.parseDouble(args.get("-density"))} :
+                new double[]{1, 4, 16, 64};
+            cell(getProjections(args), level, densities);
+        }
+        else if (benchmark.equalsIgnoreCase("aoi")){
+            int level = args.containsKey("-level") ? Integer.parseInt(args.get("-level")) : 7;
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 20000;
+            aoi(getProjections(args), level, n, threads[threads.length-1]);
+        }
+        else if (benchmark.equalsIgnoreCase("locate")){
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 1000000;
+            locate(n);
+        }
+        else if (benchmark.equalsIgnoreCase("neighbors")){
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 1000000;
+            neighbors(n);
+        }
+        else if (benchmark.equalsIgnoreCase("hierarchy")){
+            int level = args.containsKey("-level") ? Integer.parseInt(args.get("-level")) : 3;
+            hierarchy(getProjections(args), level);
+        }
+        else if (benchmark.equalsIgnoreCase("deep")){
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 250000;
+            int heap = args.containsKey("-heap") ? Integer.parseInt(args.get("-heap")) : 64;
+            int rate = args.containsKey("-rate") ? Integer.parseInt(args.get("-rate")) : 10000;
+            deep(getProjections(args), n, heap, rate, threads[threads.length-1]);
+        }
+        else if (benchmark.equalsIgnoreCase("cover")){
+            int level = args.containsKey("-level") ? Integer.parseInt(args.get("-level")) : 5;
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 20000;
+            cover(getProjections(args), level, n);
+        }
+        else if (benchmark.equalsIgnoreCase("aggregate")){
+            int n = args.containsKey("-n") ? Integer.parseInt(args.get("-n")) : 1000000;
+            aggregate(n, threads);
+        }
+        else{
+            System.out.println("Unknown benchmark: " + benchmark);
+        }
+    }
+
+
+  //**************************************************************************
+  //** queue
+  //**************************************************************************
+  /** Used to measure the throughput of the BatchQueue used to hand off
+   *  cells to the writer threads in the GridCellWriter and GridCellExporter.
+   *  The queue is compared with a synchronized LinkedList pool (the hand-off
+   *  createGrid() used before it switched to fork/join tasks). A single
+   *  producer hands off bounding boxes to a set of consumer threads.
+   */
+    private static void queue(int n, int[] threads) throws Exception {
+        Coordinate[] coords = new Coordinate[]{
+            new Coordinate(0,1,0), new Coordinate(0,0,0),
+            new Coordinate(1,0,0), new Coordinate(1,1,0),
+            new Coordinate(0,1,0)
+        };
+
+        System.out.println("threads\tpool (items/sec)\tqueue (items/sec)");
+        for (int numThreads : threads){
+            poolThroughput(coords, n/10, numThreads); //warm up
+            queueThroughput(coords, n/10, numThreads);
+            double a = poolThroughput(coords, n, numThreads);
+            double b = queueThroughput(coords, n, numThreads);
+            System.out.println(numThreads + "\t" + format(a) + "\t" + format(b));
+        }
+    }
+
+
+  //**************************************************************************
+  //** poolThroughput
+  //**************************************************************************
+  /** Replicates the LinkedList/wait-notify pool previously used by createGrid
+   */
+    private static double poolThroughput(final Coordinate[] coords, int n, int numThreads) throws Exception {
+        final List<Coordinate[]> pool = new LinkedList<>();
+        final int maxPoolSize = 50000;
+        final AtomicLong sum = new AtomicLong();
+
+        ArrayList<Thread> consumers = new ArrayList<>();
+        for (int i=0; i<numThreads; i++){
+            Thread thread = new Thread(new Runnable(){
+                public void run(){
+                    long count = 0;
+                    while (true) {
+                        Coordinate[] obj = null;
+                        synchronized (pool) {
+                            while (pool.isEmpty()) {
+                                try {
+                                    pool.wait();
+                                }
+                                catch (InterruptedException e) {
+                                    return;
+                                }
+                            }
+                            obj = pool.get(0);
+                            if (obj!=null) pool.remove(0);
+                            pool.notifyAll();
+                        }
+                        if (obj==null) break;
+                        count += obj.length;
+                    }
+                    sum.addAndGet(count);
+                }
+            });
+            consumers.add(thread);
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread thread : consumers) thread.start();
+        for (int i=0; i<n; i++){
+            synchronized(pool){
+                while (pool.size()>maxPoolSize){
+                    pool.wait();
+                }
+                pool.add(coords);
+                pool.notify();
+            }
+        }
+        synchronized (pool) {
+            pool.add(null);
+            pool.notify();
+        }
+        for (Thread thread : consumers) thread.join();
+        long ellapsedTime = System.nanoTime()-startTime;
+
+        if (sum.get()!=(long) n*coords.length) throw new Exception("Lost items!");
+        return n/(ellapsedTime/1000000000.0);
+    }
+
+
+  //**************************************************************************
+  //** queueThroughput
+  //**************************************************************************
+    private static double queueThroughput(final Coordinate[] coords, int n, int numThreads) throws Exception {
+        int batchSize = 500;
+        final BatchQueue<Coordinate[]> queue = new BatchQueue<>(50000/batchSize);
+        final AtomicLong sum = new AtomicLong();
+
+        ArrayList<Thread> consumers = new ArrayList<>();
+        for (int i=0; i<numThreads; i++){
+            Thread thread = new Thread(new Runnable(){
+                public void run(){
+                    long count = 0;
+                    while (true) {
+                        List<Coordinate[]> batch;
+                        try{
+                            batch = queue.take();
+                        }
+                        catch(InterruptedException e){
+                            return;
+                        }
+                        if (batch==null) break;
+                        for (Coordinate[] c : batch) count += c.length;
+                    }
+                    sum.addAndGet(count);
+                }
+            });
+            consumers.add(thread);
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread thread : consumers) thread.start();
+        ArrayList<Coordinate[]> batch = new ArrayList<>(batchSize);
+        for (int i=0; i<n; i++){
+            batch.add(coords);
+            if (batch.size()==batchSize){
+                queue.put(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        queue.put(batch);
+        queue.close();
+        for (Thread thread : consumers) thread.join();
+        long ellapsedTime = System.nanoTime()-startTime;
+
+        if (sum.get()!=(long) n*coords.length) throw new Exception("Lost items!");
+        return n/(ellapsedTime/1000000000.0);
+    }
+
+
+  //**************************************************************************
+  //** transform
+  //**************************************************************************
+  /** Used to compare the time it takes to convert cells from projected
+   *  coordinates to WGS84 using a MathTransform (one call per cell) with the
+   *  CylindricalTransform (latitudes computed once per row).
+   */
+    private static void transform(int n, double density) throws Exception {
+        CoordinateReferenceSystem wgs84 = CRS.decode("EPSG:4326");
+        GeometryFactory geometryFactory = new GeometryFactory();
+        int numCols = 30*256*256; //level 9
+
+        System.out.println("proj\tshape\tMathTransform (cells/sec)\tCylindricalTransform (cells/sec)");
+        for (int srid : new int[]{3857, 54017}){
+            MathTransform wgs84ToProj = CRS.findMathTransform(wgs84, CRS.decode("EPSG:" + srid), true);
+            MathTransform projToWGS84 = wgs84ToProj.inverse();
+            double[] pt = new double[]{0, 180};
+            wgs84ToProj.transform(pt, 0, pt, 0, 1);
+            double right = pt[0];
+            double gridSize = (right*2)/numCols;
+            CylindricalTransform cylinder = CylindricalTransform.create(projToWGS84, right, right*0.4);
+
+            for (int shape : new int[]{GridBuilder.SQUARE_SHAPE, GridBuilder.HEX_SHAPE, GridBuilder.DIAMOND_SHAPE}){
+                CellTemplate template = CellTemplate.getTemplates(shape, density)[0];
+                int cols = (int) Math.sqrt(n);
+                int rows = n/cols;
+
+                for (int i=0; i<2; i++){ //first pass is a warm up
+                    long t1 = System.nanoTime();
+                    long a = 0;
+                    for (int row=0; row<rows; row++){
+                        double y = row*gridSize;
+                        for (int col=0; col<cols; col++){
+                            double x = col*gridSize;
+                            Coordinate[] coords = new Coordinate[template.size()];
+                            for (int j=0; j<coords.length; j++){
+                                coords[j] = new Coordinate(x+template.x[j]*gridSize, y+template.y[j]*gridSize);
+                            }
+                            Geometry g = JTS.transform(geometryFactory.createPolygon(coords), projToWGS84);
+                            for (Coordinate coord : g.getCoordinates()){
+                                double lat = coord.x;
+                                coord.x = coord.y;
+                                coord.y = lat;
+                            }
+                            a += g.getNumPoints();
+                        }
+                    }
+                    long t2 = System.nanoTime();
+
+                    long b = 0;
+                    for (int row=0; row<rows; row++){
+                        double y = row*gridSize;
+                        double[] lats = new double[template.yValues.length];
+                        for (int j=0; j<lats.length; j++){
+                            lats[j] = y+template.yValues[j]*gridSize;
+                        }
+                        cylinder.getLatitudes(lats);
+                        for (int col=0; col<cols; col++){
+                            double x = col*gridSize;
+                            Coordinate[] coords = new Coordinate[template.size()];
+                            for (int j=0; j<coords.length; j++){
+                                coords[j] = new Coordinate(
+                                    cylinder.getLongitude(x+template.x[j]*gridSize),
+                                    lats[template.yIndex[j]]
+                                );
+                            }
+                            b += geometryFactory.createPolygon(coords).getNumPoints();
+                        }
+                    }
+                    long t3 = System.nanoTime();
+
+                    if (a!=b) throw new Exception("Vertex count mismatch");
+                    if (i==1){
+                        System.out.println(srid + "\t" + shape + "\t" +
+                        format(rows*cols/((t2-t1)/1000000000.0)) + "\t" +
+                        format(rows*cols/((t3-t2)/1000000000.0)));
+                    }
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** locate
+  //**************************************************************************
+  /** Used to measure the time it takes to find cells for random points using
+   *  GridBuilder.locate(), one point at a time and in bulk.
+   */
+    private static void locate(int n) throws Exception {
+        Random random = new Random(1);
+        double[] lon = new double[n];
+        double[] lat = new double[n];
+        for (int i=0; i<n; i++){
+            lon[i] = random.nextDouble()*360-180;
+            lat[i] = random.nextDouble()*160-80;
+        }
+        long[] keys = new long[n];
+
+        System.out.println("proj\tshape\tlevel\tsingle (ns/point)\tbulk (ns/point)");
+        for (int srid : new int[]{3857, 54017}){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : new int[]{GridBuilder.SQUARE_SHAPE, GridBuilder.HEX_SHAPE, GridBuilder.DIAMOND_SHAPE}){
+                for (int level : new int[]{5, 9}){
+                    for (int i=0; i<2; i++){ //first pass is a warm up
+                        long t1 = System.nanoTime();
+                        for (int j=0; j<n; j++){
+                            keys[j] = grid.locate(lon[j], lat[j], shape, level);
+                        }
+                        long t2 = System.nanoTime();
+                        grid.locate(lon, lat, shape, level, keys);
+                        long t3 = System.nanoTime();
+
+                        if (i==1){
+                            System.out.println(srid + "\t" + shape + "\t" + level + "\t" +
+                            format((t2-t1)/(double) n) + "\t" + format((t3-t2)/(double) n));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** neighbors
+  //**************************************************************************
+  /** Used to measure the time it takes to find the neighbors of random cells
+   *  using GridBuilder.getKRing() with k=1 and k=3. The neighbors of the
+   *  first 100 cells are checked using checkNeighbors().
+   */
+    private static void neighbors(int n) throws Exception {
+        Random random = new Random(1);
+        double[] lon = new double[n];
+        double[] lat = new double[n];
+        for (int i=0; i<n; i++){
+            lon[i] = random.nextDouble()*360-180;
+            lat[i] = random.nextDouble()*160-80;
+        }
+        long[] keys = new long[n];
+
+        System.out.println("proj\tshape\tlevel\tk=1 (lookups/sec)\tk=3 (lookups/sec)");
+        for (int srid : new int[]{3857, 54017}){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+                long[] ring = new long[GridBuilder.getKRingSize(shape, 3)];
+                for (int level : new int[]{5, 9}){
+                    grid.locate(lon, lat, shape, level, keys);
+                    for (int i=0; i<2; i++){ //first pass is a warm up
+                        long t1 = System.nanoTime();
+                        for (int j=0; j<n; j++) grid.getKRing(keys[j], 1, ring);
+                        long t2 = System.nanoTime();
+                        for (int j=0; j<n; j++) grid.getKRing(keys[j], 3, ring);
+                        long t3 = System.nanoTime();
+
+                        if (i==1){
+                            System.out.println(srid + "\t" + shape + "\t" + level + "\t" +
+                            format(n/((t2-t1)/1000000000.0)) + "\t" +
+                            format(n/((t3-t2)/1000000000.0)));
+                        }
+                    }
+                    for (int j=0; j<Math.min(n, 100); j++){
+                        if (keys[j]>0) checkNeighbors(grid, keys[j]);
+                    }
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** checkNeighbors
+  //**************************************************************************
+  /** Used to check the neighbors of a cell. Throws an exception if:
+   *  <ul>
+   *  <li>The neighbors aren't the cells that touch the cell. Touching cells
+   *  are found by generating the cells that intersect the cell buffered by
+   *  1% of its width (smaller buffers are lost when the cell is projected).
+   *  Skipped for cells near the dateline.</li>
+   *  <li>The cell isn't a neighbor of each of its neighbors</li>
+   *  <li>The k-ring with k=3 isn't the set of cells found by taking the
+   *  neighbors of the cell 3 times</li>
+   *  </ul>
+   */
+    private static void checkNeighbors(GridBuilder grid, long key) throws Exception {
+        long[] neighbors = grid.getNeighbors(key);
+        Arrays.sort(neighbors);
+
+
+      //Check that the neighbors are symmetric
+        for (long neighbor : neighbors){
+            long[] arr = grid.getNeighbors(neighbor);
+            Arrays.sort(arr);
+            if (Arrays.binarySearch(arr, key)<0) throw new Exception(
+                "Cell " + key + " is not a neighbor of " + neighbor);
+        }
+
+
+      //Check that the k-ring matches the neighbors of the neighbors
+        TreeSet<Long> ring = new TreeSet<>();
+        ring.add(key);
+        for (int k=0; k<3; k++){
+            for (Long k1 : new ArrayList<>(ring)){
+                for (long k2 : grid.getNeighbors(k1)) ring.add(k2);
+            }
+        }
+        long[] kring = grid.getKRing(key, 3);
+        Arrays.sort(kring);
+        long[] expected = new long[ring.size()];
+        int i = 0;
+        for (Long k : ring) expected[i++] = k;
+        if (!Arrays.equals(kring, expected)) throw new Exception(
+            "K-ring doesn't match the neighbors of " + key);
+
+
+      //Check that the neighbors are the cells that touch the cell
+        Cell cell = grid.getCell(key);
+        if (cell==null) throw new Exception("Invalid key: " + key);
+        Geometry geom = cell.getGeom();
+        Envelope env = geom.getEnvelopeInternal();
+        if (env.getMinX()<-170 || env.getMaxX()>170) return;
+        Keys touching = new Keys();
+        grid.createGrid(CellKey.getShape(key), CellKey.getLevel(key), 1,
+        geom.buffer(env.getWidth()*0.01), 1, touching);
+        Keys arr = new Keys();
+        for (long k : touching.toArray()){
+            if (k!=key) arr.add(k);
+        }
+        if (!Arrays.equals(neighbors, arr.toArray())) throw new Exception(
+            "Neighbors of " + key + " don't match the cells that touch it");
+    }
+
+
+  //**************************************************************************
+  //** hierarchy
+  //**************************************************************************
+  /** Used to measure the time it takes to find the parent and children of
+   *  cells using GridBuilder.getParent() and getChildren(). Cells for levels
+   *  1 to maxLevel are generated in a single call to createGrid(). Throws an
+   *  exception if:
+   *  <ul>
+   *  <li>The parent of a cell (Cell.getParent) doesn't match getParent()</li>
+   *  <li>A cell isn't one of the children of its parent</li>
+   *  <li>The children of the cells in a level aren't the cells in the next
+   *  level, with each cell appearing exactly once</li>
+   *  </ul>
+   */
+    private static void hierarchy(int[] projections, int maxLevel) throws Exception {
+        System.out.println("proj\tshape\tlevel\tcells\tparent (lookups/sec)\tchildren (lookups/sec)");
+        for (int srid : projections){
+            final GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+
+              //Generate cells and check the parent assigned to each cell
+                final Keys[] levels = new Keys[maxLevel+1];
+                for (int i=1; i<levels.length; i++) levels[i] = new Keys();
+                final AtomicLong errors = new AtomicLong();
+                grid.createGrid(shape, 1, maxLevel, 1, null, 1, new GridBuilder.CellCallBack(){
+                    public void add(Cell cell){
+                        levels[cell.getLevel()].add(cell);
+                        try{
+                            if (cell.getParent()!=grid.getParent(cell.getKey())){
+                                errors.incrementAndGet();
+                            }
+                        }
+                        catch(Exception e){
+                            errors.incrementAndGet();
+                        }
+                    }
+                    public void done(){}
+                });
+                if (errors.get()>0) throw new Exception(
+                    errors.get() + " cells have the wrong parent");
+                for (long key : levels[1].toArray()){
+                    if (grid.getParent(key)!=-1) throw new Exception(
+                        "Cell in the first level has a parent: " + key);
+                }
+
+
+                for (int level=2; level<=maxLevel; level++){
+                    long[] keys = levels[level].toArray();
+
+
+                  //Check that each cell is one of the children of its parent
+                    long t1 = System.nanoTime();
+                    long[] parents = new long[keys.length];
+                    for (int i=0; i<keys.length; i++){
+                        parents[i] = grid.getParent(keys[i]);
+                    }
+                    long t2 = System.nanoTime();
+                    for (int i=0; i<keys.length; i++){
+                        if (parents[i]==-1) throw new Exception(
+                            "Cell has no parent: " + keys[i]);
+                        boolean found = false;
+                        for (long child : grid.getChildren(parents[i])){
+                            if (child==keys[i]){
+                                found = true;
+                                break;
+                            }
+                        }
+                        if (!found) throw new Exception(
+                            "Cell " + keys[i] + " is not a child of its parent " + parents[i]);
+                    }
+
+
+                  //Check that the children of the previous level are the
+                  //cells in this level
+                    long[] prevLevel = levels[level-1].toArray();
+                    Keys children = new Keys();
+                    long t3 = System.nanoTime();
+                    for (long key : prevLevel){
+                        for (long child : grid.getChildren(key)) children.add(child);
+                    }
+                    long t4 = System.nanoTime();
+                    if (!Arrays.equals(keys, children.toArray())) throw new Exception(
+                        "Children of level " + (level-1) + " don't match level " + level +
+                        ": " + children.size() + " vs " + keys.length);
+
+                    System.out.println(srid + "\t" + shape + "\t" + level + "\t" + keys.length + "\t" +
+                    format(keys.length/((t2-t1)/1000000000.0)) + "\t" +
+                    format(prevLevel.length/((t4-t3)/1000000000.0)));
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** aggregate
+  //**************************************************************************
+  /** Used to measure the time it takes to bin random weighted points into
+   *  cells using a GridAggregator. The points are split evenly between the
+   *  threads and each thread adds its points in bulk.
+   */
+    private static void aggregate(int n, int[] threads) throws Exception {
+        Random random = new Random(1);
+        final double[] lon = new double[n];
+        final double[] lat = new double[n];
+        final double[] weights = new double[n];
+        for (int i=0; i<n; i++){
+            lon[i] = random.nextDouble()*360-180;
+            lat[i] = random.nextDouble()*160-80;
+            weights[i] = random.nextDouble();
+        }
+
+        System.out.println("proj\tshape\tlevel\tthreads\tcells\tpoints/sec");
+        for (int srid : new int[]{3857, 54017}){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+                for (int level : new int[]{5, 9}){
+                    for (int numThreads : threads){
+                        for (int i=0; i<2; i++){ //first pass is a warm up
+                            final GridAggregator aggregator = new GridAggregator(grid, shape, level);
+                            ArrayList<Thread> workers = new ArrayList<>();
+                            final AtomicReference<Exception> error = new AtomicReference<>();
+                            for (int j=0; j<numThreads; j++){
+                                final int start = (int) ((long) n*j/numThreads);
+                                final int end = (int) ((long) n*(j+1)/numThreads);
+                                workers.add(new Thread(new Runnable(){
+                                    public void run(){
+                                        try{
+                                            aggregator.add(
+                                                Arrays.copyOfRange(lon, start, end),
+                                                Arrays.copyOfRange(lat, start, end),
+                                                Arrays.copyOfRange(weights, start, end)
+                                            );
+                                        }
+                                        catch(Exception e){
+                                            error.set(e);
+                                        }
+                                    }
+                                }));
+                            }
+
+                            long t1 = System.nanoTime();
+                            for (Thread thread : workers) thread.start();
+                            for (Thread thread : workers) thread.join();
+                            long t2 = System.nanoTime();
+                            if (error.get()!=null) throw error.get();
+
+                            if (i==1){
+                                System.out.println(srid + "\t" + shape + "\t" + level + "\t" +
+                                numThreads + "\t" + aggregator.size() + "\t" +
+                                format(n/((t2-t1)/1000000000.0)));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** grid
+  //**************************************************************************
+  /** Used to measure the end-to-end throughput of createGrid() for each
+   *  shape at several levels and thread counts. Cells are generated with a
+   *  CellCallBack (no geometry) and with a CallBack (GridCell for every
+   *  cell).
+   */
+    private static void grid(int[] projections, int[] levels, int[] threads) throws Exception {
+        System.out.println("proj\tshape\tlevel\tthreads\tcells\t" +
+        "Cell (cells/sec)\tCell (bytes/cell)\tGridCell (cells/sec)\tGridCell (bytes/cell)");
+        for (int srid : projections){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+                for (int level : levels){
+                    for (int numThreads : threads){
+                        Counter a = null, b = null;
+                        for (int i=0; i<2; i++){ //first pass is a warm up
+                            a = new Counter(false);
+                            grid.createGrid(shape, level, 1, null, numThreads, a);
+                            b = new Counter(true);
+                            grid.createGrid(shape, level, 1, null, numThreads, b);
+                        }
+                        System.out.println(srid + "\t" + shape + "\t" + level + "\t" +
+                        numThreads + "\t" + a.getCount() + "\t" +
+                        format(a.getRate()) + "\t" + format(a.getBytesPerCell()) + "\t" +
+                        format(b.getRate()) + "\t" + format(b.getBytesPerCell()));
+                    }
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** cell
+  //**************************************************************************
+  /** Used to measure the cost of building individual cells (getCell) with
+   *  and without densification. Uses a single thread.
+   */
+    private static void cell(int[] projections, int level, double[] densities) throws Exception {
+        System.out.println("proj\tshape\tdensity\tpoints/cell\tcells/sec\tbytes/cell");
+        for (int srid : projections){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+                for (double density : densities){
+                    Counter counter = null;
+                    for (int i=0; i<2; i++){ //first pass is a warm up
+                        counter = new Counter(false);
+                        grid.createGrid(shape, level, density, null, 1, counter);
+                    }
+                    System.out.println(srid + "\t" + shape + "\t" + density + "\t" +
+                    counter.getNumPoints() + "\t" + format(counter.getRate()) + "\t" +
+                    format(counter.getBytesPerCell()));
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** aoi
+  //**************************************************************************
+  /** Used to compare the throughput of createGrid() using a simple AOI (a
+   *  rectangle) with a complex AOI that has the same extent (a jagged
+   *  "coastline" with n vertices and a set of islands).
+   */
+    private static void aoi(int[] projections, int level, int n, int numThreads) throws Exception {
+        Geometry complex = createAOI(n);
+        Geometry simple = complex.getFactory().toGeometry(complex.getEnvelopeInternal());
+
+
+        System.out.println("proj\tshape\tbbox (cells)\tbbox (cells/sec)\t" +
+        "complex (cells)\tcomplex (cells/sec)\tcomplex (bytes/cell)");
+        for (int srid : projections){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+                Counter a = null, b = null;
+                for (int i=0; i<2; i++){ //first pass is a warm up
+                    a = new Counter(false);
+                    grid.createGrid(shape, level, 1, simple, numThreads, a);
+                    b = new Counter(false);
+                    grid.createGrid(shape, level, 1, complex, numThreads, b);
+                }
+                System.out.println(srid + "\t" + shape + "\t" +
+                a.getCount() + "\t" + format(a.getRate()) + "\t" +
+                b.getCount() + "\t" + format(b.getRate()) + "\t" +
+                format(b.getBytesPerCell()));
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** deep
+  //**************************************************************************
+  /** Used to generate cells at levels 10 to 12 (GridBuilder.MAX_LEVEL) for
+   *  a rectangle near (10, 5) sized to produce roughly n cells. Throws an
+   *  exception if:
+   *  <ul>
+   *  <li>The peak live heap while generating cells exceeds maxHeap MB</li>
+   *  <li>Cells are generated at less than minRate cells/sec</li>
+   *  <li>A point in the rectangle is located in a cell that doesn't contain
+   *  it, or a cell can't be located using a point inside it</li>
+   *  <li>createGrid() accepts a level greater than MAX_LEVEL</li>
+   *  </ul>
+   *  Levels 13 and up aren't supported because the column index doesn't fit
+   *  in the 28 bits reserved for it in a CellKey.
+   */
+    private static void deep(int[] projections, int n, int maxHeap, int minRate, int numThreads) throws Exception {
+        GeometryFactory geometryFactory = new GeometryFactory();
+        Random random = new Random(1);
+
+        System.out.println("proj\tshape\tlevel\tcells\tcells/sec\tpeak heap (MB)");
+        for (int srid : projections){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+                for (int level=10; level<=GridBuilder.MAX_LEVEL; level++){
+
+                  //Create a rectangle that covers roughly n cells
+                    Cell cell = grid.getCell(grid.locate(10, 5, shape, level));
+                    Envelope env = cell.getGeom().getEnvelopeInternal();
+                    double dx = Math.sqrt(n)*env.getWidth()/2;
+                    double dy = Math.sqrt(n)*env.getHeight()/2;
+                    Envelope rect = new Envelope(10-dx, 10+dx, 5-dy, 5+dy);
+                    Geometry aoi = geometryFactory.toGeometry(rect);
+
+
+                  //Generate cells and record the peak heap
+                    grid.createGrid(shape, level, 1, aoi, numThreads, new Counter(false)); //warm up
+                    HeapMonitor heap = new HeapMonitor();
+                    Counter counter = new Counter(false);
+                    grid.createGrid(shape, level, 1, aoi, numThreads, counter);
+                    double peak = heap.stop()/(1024.0*1024.0);
+                    System.out.println(srid + "\t" + shape + "\t" + level + "\t" +
+                    counter.getCount() + "\t" + format(counter.getRate()) + "\t" + format(peak));
+
+                    if (counter.getCount()==0) throw new Exception(
+                        "No cells generated for level " + level);
+                    if (peak>maxHeap) throw new Exception(
+                        "Peak heap for level " + level + " exceeds " + maxHeap + " MB");
+                    if (counter.getRate()<minRate) throw new Exception(
+                        "Cells/sec for level " + level + " is less than " + minRate);
+
+
+                  //Check that random points round trip through locate()
+                    for (int i=0; i<1000; i++){
+                        Point point = geometryFactory.createPoint(new Coordinate(
+                            rect.getMinX()+random.nextDouble()*rect.getWidth(),
+                            rect.getMinY()+random.nextDouble()*rect.getHeight()
+                        ));
+                        long key = grid.locate(point.getX(), point.getY(), shape, level);
+                        cell = grid.getCell(key);
+                        if (cell==null) throw new Exception(
+                            "Failed to locate " + point + " at level " + level);
+                        Geometry geom = cell.getGeom();
+                        if (geom.distance(point)>geom.getEnvelopeInternal().getWidth()*0.01){
+                            throw new Exception("Cell " + key + " doesn't contain " + point);
+                        }
+                        Point center = geom.getInteriorPoint();
+                        if (grid.locate(center.getX(), center.getY(), shape, level)!=key){
+                            throw new Exception("Failed to locate cell " + key + " using " + center);
+                        }
+                    }
+                }
+
+
+              //Check that levels past MAX_LEVEL are rejected
+                try{
+                    grid.createGrid(shape, GridBuilder.MAX_LEVEL+1, 1, null, numThreads, new Counter(false));
+                    throw new Exception("Level " + (GridBuilder.MAX_LEVEL+1) + " was accepted");
+                }
+                catch(IllegalArgumentException e){}
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** cover
+  //**************************************************************************
+  /** Used to measure the time it takes to compute a cover for a complex AOI
+   *  using GridBuilder.cover() and to check the results. Throws an exception
+   *  if the cover doesn't match the cells generated by createGrid(), if a
+   *  cell that is inside the AOI isn't in the cover, if a compacted cover
+   *  doesn't expand back into the original cover (squares only), or if the
+   *  cover of the entire world (level 3) doesn't match createGrid(). The
+   *  world cover includes the rows at the poles, where some hexagons and
+   *  diamonds are skipped.
+   */
+    private static void cover(int[] projections, int level, int n) throws Exception {
+        Geometry aoi = createAOI(n);
+
+        System.out.println("proj\tshape\tcells\tcells/sec\tcontained\tcompacted");
+        for (int srid : projections){
+            GridBuilder grid = new GridBuilder(srid);
+            for (int shape : SHAPES){
+                long[] keys = null;
+                long t = 0;
+                for (int i=0; i<2; i++){ //first pass is a warm up
+                    long t1 = System.nanoTime();
+                    keys = grid.cover(aoi, shape, level);
+                    t = System.nanoTime()-t1;
+                }
+
+
+              //Compare the cover with the cells generated by createGrid()
+                Keys cells = new Keys();
+                grid.createGrid(shape, level, 1, aoi, 1, cells);
+                if (!Arrays.equals(keys, cells.toArray())) throw new Exception(
+                    "Cover doesn't match createGrid(): " + keys.length + " vs " + cells.size());
+
+
+              //Check that cells inside the AOI are in the cover
+                long[] contained = grid.cover(aoi, shape, level, true, false);
+                for (long key : contained){
+                    if (Arrays.binarySearch(keys, key)<0) throw new Exception(
+                        "Contained cell not in cover: " + key);
+                }
+
+
+              //Check that the compacted cover expands into the original cover
+                String compacted = "-";
+                if (shape==GridBuilder.SQUARE_SHAPE){
+                    long[] arr = grid.cover(aoi, shape, level, false, true);
+                    Keys expanded = new Keys();
+                    for (long key : arr) expand(grid, key, level, expanded);
+                    if (!Arrays.equals(keys, expanded.toArray())) throw new Exception(
+                        "Compacted cover doesn't match the cover");
+                    compacted = arr.length+"";
+                }
+
+              //Compare the cover of the entire world with createGrid(). Web
+              //Mercator is limited to 85 degrees.
+                double lat = srid==3857 ? 85 : 90;
+                Geometry world = aoi.getFactory().toGeometry(new Envelope(-180, 180, -lat, lat));
+                long[] arr = grid.cover(world, shape, 3);
+                cells = new Keys();
+                grid.createGrid(shape, 3, 1, world, 1, cells);
+                if (!Arrays.equals(arr, cells.toArray())) throw new Exception(
+                    "World cover doesn't match createGrid(): " + arr.length + " vs " + cells.size());
+
+                System.out.println(srid + "\t" + shape + "\t" + keys.length + "\t" +
+                format(keys.length/(t/1000000000.0)) + "\t" + contained.length + "\t" +
+                compacted);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** expand
+  //**************************************************************************
+  /** Used to add the descendants of a cell at a given level
+   */
+    private static void expand(GridBuilder grid, long key, int level, Keys keys) throws Exception {
+        if (CellKey.getLevel(key)>=level){
+            keys.add(key);
+            return;
+        }
+        for (long child : grid.getChildren(key)) expand(grid, child, level, keys);
+    }
+
+
+  //**************************************************************************
+  //** createAOI
+  //**************************************************************************
+  /** Returns a complex AOI consisting of a jagged "coastline" with n
+   *  vertices and a set of islands in western Europe
+   */
+    private static Geometry createAOI(int n){
+        GeometryFactory geometryFactory = new GeometryFactory();
+        double west = -10, east = 10, south = 35, north = 55;
+
+
+      //Create jagged polygon with n vertices along a wavy boundary
+        Random random = new Random(1);
+        Coordinate[] coords = new Coordinate[n+1];
+        for (int i=0; i<n; i++){
+            double a = 2*Math.PI*i/n;
+            double r = 0.8+0.1*Math.sin(a*40)+0.05*Math.sin(a*400)+0.002*random.nextDouble();
+            coords[i] = new Coordinate(
+                (west+east)/2+Math.cos(a)*r*(east-west)/2,
+                (south+north)/2+Math.sin(a)*r*(north-south)/2
+            );
+        }
+        coords[n] = coords[0];
+        ArrayList<Polygon> polygons = new ArrayList<>();
+        polygons.add(geometryFactory.createPolygon(coords));
+
+
+      //Add islands in the corners
+        for (int i=0; i<200; i++){
+            double x = random.nextBoolean() ? west+random.nextDouble() : east-random.nextDouble();
+            double y = random.nextBoolean() ? south+random.nextDouble() : north-random.nextDouble();
+            polygons.add((Polygon) geometryFactory.createPoint(new Coordinate(x, y)).buffer(0.05, 8));
+        }
+        return geometryFactory.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+    }
+
+
+  //**************************************************************************
+  //** Keys
+  //**************************************************************************
+  /** CellCallBack used to collect cell keys
+   */
+    private static class Keys implements GridBuilder.CellCallBack {
+        private long[] keys = new long[1024];
+        private int size;
+
+        public synchronized void add(Cell cell){
+            add(cell.getKey());
+        }
+
+        public synchronized void add(long key){
+            if (size==keys.length) keys = Arrays.copyOf(keys, size*2);
+            keys[size++] = key;
+        }
+
+        public void done(){}
+
+        public synchronized int size(){
+            return size;
+        }
+
+      /** Returns the keys in ascending order */
+        public synchronized long[] toArray(){
+            long[] arr = Arrays.copyOf(keys, size);
+            Arrays.sort(arr);
+            return arr;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Counter
+  //**************************************************************************
+  /** CellCallBack used to count cells and to measure the number of bytes
+   *  allocated by the threads that generate cells. Allocations are sampled
+   *  every 256 cells using the HotSpot ThreadMXBean so the numbers are
+   *  approximate.
+   */
+    private static class Counter implements GridBuilder.CellCallBack {
+        private boolean materialize;
+        private long startTime = System.nanoTime();
+        private long endTime;
+        private AtomicLong count = new AtomicLong();
+        private AtomicInteger numPoints = new AtomicInteger();
+        private ArrayList<long[]> threads = new ArrayList<>();
+        private ThreadLocal<long[]> stats = new ThreadLocal<long[]>(){
+            protected long[] initialValue(){
+                long bytes = getAllocatedBytes();
+                long[] arr = new long[]{0, bytes, bytes}; //count, start, end
+                synchronized(threads){
+                    threads.add(arr);
+                }
+                return arr;
+            }
+        };
+
+      /** @param materialize If true, will create a GridCell for every cell
+       */
+        public Counter(boolean materialize){
+            this.materialize = materialize;
+        }
+
+        public void add(Cell cell){
+            if (materialize) cell.toGridCell();
+            long[] arr = stats.get();
+            if ((++arr[0] & 0xFF)==0) arr[2] = getAllocatedBytes();
+            numPoints.compareAndSet(0, cell.getNumPoints());
+        }
+
+        public void done(){
+            endTime = System.nanoTime();
+            for (long[] arr : threads) count.addAndGet(arr[0]);
+        }
+
+        public long getCount(){
+            return count.get();
+        }
+
+        public int getNumPoints(){
+            return numPoints.get();
+        }
+
+        public double getRate(){
+            return count.get()/((endTime-startTime)/1000000000.0);
+        }
+
+        public double getBytesPerCell(){
+            long bytes = 0, n = 0;
+            for (long[] arr : threads){
+                bytes += arr[2]-arr[1];
+                n += arr[0] & ~0xFFL;
+            }
+            return n==0 ? 0 : bytes/(double) n;
+        }
+
+        private static long getAllocatedBytes(){
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+
+  //**************************************************************************
+  //** HeapMonitor
+  //**************************************************************************
+  /** Used to track the peak live heap while a benchmark is running. A
+   *  background thread runs the garbage collector every 100 ms and records
+   *  the used memory relative to the memory used when the monitor was
+   *  created.
+   */
+    private static class HeapMonitor implements Runnable {
+        private long baseline;
+        private long peak;
+        private volatile boolean running = true;
+        private Thread thread;
+
+        public HeapMonitor(){
+            baseline = getUsedMemory();
+            thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run(){
+            while (running){
+                long used = getUsedMemory()-baseline;
+                synchronized(this){
+                    if (used>peak) peak = used;
+                }
+                try{
+                    Thread.sleep(100);
+                }
+                catch(InterruptedException e){}
+            }
+        }
+
+      /** Stops the monitor and returns the peak live heap in bytes */
+        public long stop() throws InterruptedException {
+            running = false;
+            thread.interrupt();
+            thread.join();
+            synchronized(this){
+                return peak;
+            }
+        }
+
+        private static long getUsedMemory(){
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory()-runtime.freeMemory();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getProjections
+  //**************************************************************************
+    private static int[] getProjections(HashMap<String, String> args){
+        if (args.containsKey("-proj")){
+            return new int[]{new GridBuilder(args.get("-proj")).getSRID()};
+        }
+        return new int[]{3857, 54017};
+    }
+
+
+  //**************************************************************************
+  //** format
+  //**************************************************************************
+    private static String format(double d){
+        return String.format("%,.0f", d);
+    }
+}
@@ -0,0 +1,267 @@
+package com.kartographia.grid;
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import javaxt.json.JSONObject;
+import java.util.*;
+
+//******************************************************************************
+//**  Cell
+//******************************************************************************
+/**
+ *   Lightweight representation of a grid cell. Coordinates are stored in a
+ *   packed array of longitudes and latitudes (lon0, lat0, lon1, lat1, ...)
+ *   instead of a JTS geometry. Instances of this class are reused by the
+ *   GridBuilder so a cell passed to a GridBuilder.CellCallBack is only valid
+ *   until the add() method returns. Use copy(), getGeom(), or toGridCell()
+ *   to keep a cell.
+ *
+ ******************************************************************************/
+
+public class Cell {
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private int shape;
+    private int level;
+    private int proj;
+    int col;
+    int row;
+    int index;
+    int numPoints;
+    int split; //number of points in the first part of a split cell
+    long parent = -1; //key of the parent cell (multi-level grids)
+    double[] coords;
+    private Geometry geom;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param maxPoints Max number of vertices in the cell, including the
+   *  closing vertex
+   */
+    Cell(int shape, int level, int proj, int maxPoints){
+        this.shape = shape;
+        this.level = level;
+        this.proj = proj;
+        this.coords = new double[maxPoints*2];
+    }
+
+
+  //**************************************************************************
+  //** set
+  //**************************************************************************
+  /** Used to update the grid indices and the number of points in the cell
+   */
+    void set(int col, int row, int index, int numPoints){
+        this.col = col;
+        this.row = row;
+        this.index = index;
+        this.numPoints = numPoints;
+        this.split = 0;
+        this.parent = -1;
+        this.geom = null;
+    }
+
+
+    public int getShape(){
+        return shape;
+    }
+
+    public int getLevel(){
+        return level;
+    }
+
+    public int getProj(){
+        return proj;
+    }
+
+
+  //**************************************************************************
+  //** getCol
+  //**************************************************************************
+  /** Returns the column index of the bounding box associated with the cell
+   */
+    public int getCol(){
+        return col;
+    }
+
+
+  //**************************************************************************
+  //** getRow
+  //**************************************************************************
+  /** Returns the row index of the bounding box associated with the cell
+   */
+    public int getRow(){
+        return row;
+    }
+
+
+  //**************************************************************************
+  //** getIndex
+  //**************************************************************************
+  /** Returns the index of the cell within its bounding box. Hexagons and
+   *  diamonds have a second cell (index 1) to the right and slightly lower
+   *  than the bounding box.
+   */
+    public int getIndex(){
+        return index;
+    }
+
+
+  //**************************************************************************
+  //** getNumPoints
+  //**************************************************************************
+  /** Returns the number of vertices in the cell, including the closing vertex.
+   *  For cells that are split at the dateline, returns the total number of
+   *  vertices in both parts.
+   */
+    public int getNumPoints(){
+        return numPoints;
+    }
+
+
+  //**************************************************************************
+  //** getNumParts
+  //**************************************************************************
+  /** Returns the number of polygons used to represent the cell. Returns 2 if
+   *  the cell was split at the dateline (see GridBuilder.setDatelineMode),
+   *  1 otherwise.
+   */
+    public int getNumParts(){
+        return split>0 ? 2 : 1;
+    }
+
+
+  //**************************************************************************
+  //** getNumPoints
+  //**************************************************************************
+  /** Returns the number of vertices in a part of the cell, including the
+   *  closing vertex. The vertices of the second part follow the vertices of
+   *  the first part in the coordinate array.
+   *  @param part Index of the part (see getNumParts)
+   */
+    public int getNumPoints(int part){
+        if (split==0) return part==0 ? numPoints : 0;
+        return part==0 ? split : numPoints-split;
+    }
+
+
+  //**************************************************************************
+  //** getCoordinates
+  //**************************************************************************
+  /** Returns a packed array of coordinates (lon0, lat0, lon1, lat1, ...).
+   *  Note that the array is reused and may be larger than getNumPoints()*2.
+   */
+    public double[] getCoordinates(){
+        return coords;
+    }
+
+
+    public double getX(int i){
+        return coords[i*2];
+    }
+
+    public double getY(int i){
+        return coords[i*2+1];
+    }
+
+
+  //**************************************************************************
+  //** getKey
+  //**************************************************************************
+  /** Returns a 64-bit key for the cell. The key is stored in the "hash"
+   *  column of the grid_cell table. See CellKey for more information.
+   */
+    public long getKey(){
+        return CellKey.encode(shape, level, col, row, index);
+    }
+
+
+  //**************************************************************************
+  //** getParent
+  //**************************************************************************
+  /** Returns the key of the cell one level up that contains the center of
+   *  this cell. Only available for cells generated by the multi-level
+   *  version of GridBuilder.createGrid(). Returns -1 otherwise (e.g. cells
+   *  in the first level of the grid), same as GridBuilder.getParent().
+   */
+    public long getParent(){
+        return parent;
+    }
+
+
+  //**************************************************************************
+  //** getGeom
+  //**************************************************************************
+  /** Returns a polygon for the cell in WGS84, or a multipolygon if the cell
+   *  was split at the dateline. The geometry is created the first time this
+   *  method is called for a given cell (e.g. by the spatial filter) and is
+   *  reused by subsequent calls, including toGridCell(). The geometry has its
+   *  own copy of the coordinates so it remains valid after the cell is
+   *  reused.
+   */
+    public Geometry getGeom(){
+        if (geom==null){
+            if (split==0){
+                geom = createPolygon(0, numPoints);
+            }
+            else{
+                geom = geometryFactory.createMultiPolygon(new Polygon[]{
+                    createPolygon(0, split), createPolygon(split, numPoints)
+                });
+            }
+        }
+        return geom;
+    }
+
+
+  //**************************************************************************
+  //** createPolygon
+  //**************************************************************************
+  /** Returns a polygon using a range of vertices in the coordinate array
+   */
+    private Polygon createPolygon(int start, int end){
+        double[] arr = Arrays.copyOfRange(coords, start*2, end*2);
+        return geometryFactory.createPolygon(new PackedCoordinateSequence.Double(arr, 2));
+    }
+
+
+  //**************************************************************************
+  //** toGridCell
+  //**************************************************************************
+  /** Returns a new GridCell for the cell. The parent key, if any, is stored
+   *  in the info (e.g. {"parent": 1234}).
+   */
+    public GridCell toGridCell(){
+        GridCell gridCell = new GridCell();
+        gridCell.setShape(shape);
+        gridCell.setLevel(level);
+        gridCell.setProj(proj);
+        gridCell.setGeom(getGeom());
+        gridCell.setHash(getKey());
+        if (parent!=-1){
+            JSONObject info = new JSONObject();
+            info.set("parent", parent);
+            gridCell.setInfo(info);
+        }
+        return gridCell;
+    }
+
+
+  //**************************************************************************
+  //** copy
+  //**************************************************************************
+  /** Returns a copy of this cell that can be kept after the add() method
+   *  of the GridBuilder.CellCallBack returns
+   */
+    public Cell copy(){
+        Cell cell = new Cell(shape, level, proj, numPoints);
+        cell.set(col, row, index, numPoints);
+        cell.split = split;
+        cell.parent = parent;
+        System.arraycopy(coords, 0, cell.coords, 0, numPoints*2);
+        cell.geom = geom;
+        return cell;
+    }
+}
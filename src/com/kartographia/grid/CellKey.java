@@ -0,0 +1,108 @@
+package com.kartographia.grid;
+
+//******************************************************************************
+//**  CellKey
+//******************************************************************************
+/**
+ *   Used to encode and decode 64-bit identifiers for grid cells. A key is
+ *   computed from the grid indices of a cell so no geometry is required and
+ *   keys never collide. Bits are assigned as follows (high to low):
+ *   <pre>
+ *   1 bit  - unused (keys are always positive)
+ *   4 bits - level
+ *   2 bits - shape
+ *   1 bit  - index of the cell within its bounding box
+ *  28 bits - row, offset by 2^27 (rows can be negative)
+ *  28 bits - column
+ *   </pre>
+ *   Keys are unique within a projection. The projection is stored separately
+ *   (e.g. the proj column in the grid_cell table). Note that 28 bits are
+ *   enough to store the columns of a grid up to level 12 (125,829,120
+ *   columns) which is why GridBuilder.MAX_LEVEL is 12.
+ *
+ ******************************************************************************/
+
+public class CellKey {
+
+    private static final int COL_BITS = 28;
+    private static final int ROW_BITS = 28;
+    private static final long COL_MASK = (1L<<COL_BITS)-1;
+    private static final long ROW_MASK = (1L<<ROW_BITS)-1;
+    private static final int ROW_OFFSET = 1<<(ROW_BITS-1);
+    private static final int ROW_SHIFT = COL_BITS;
+    private static final int INDEX_SHIFT = ROW_SHIFT+ROW_BITS;
+    private static final int SHAPE_SHIFT = INDEX_SHIFT+1;
+    private static final int LEVEL_SHIFT = SHAPE_SHIFT+2;
+
+    public static final int MAX_LEVEL = 15;
+
+    private CellKey(){}
+
+
+  //**************************************************************************
+  //** encode
+  //**************************************************************************
+  /** Returns a key for a grid cell
+   *  @param shape Shape of the cell (e.g SQUARE_SHAPE, HEX_SHAPE, DIAMOND_SHAPE)
+   *  @param level Grid level
+   *  @param col Column index of the bounding box associated with the cell
+   *  @param row Row index of the bounding box associated with the cell
+   *  @param index Index of the cell within the bounding box (0 or 1)
+   */
+    public static long encode(int shape, int level, int col, int row, int index){
+        if (level<1 || level>MAX_LEVEL) throw new IllegalArgumentException("Invalid level: " + level);
+        if (shape<1 || shape>3) throw new IllegalArgumentException("Invalid shape: " + shape);
+        if (col<0 || col>COL_MASK) throw new IllegalArgumentException("Invalid column: " + col);
+        if (row<-ROW_OFFSET || row>=ROW_OFFSET) throw new IllegalArgumentException("Invalid row: " + row);
+        return ((long) level<<LEVEL_SHIFT) |
+               ((long) shape<<SHAPE_SHIFT) |
+               ((long) (index&1)<<INDEX_SHIFT) |
+               ((long) (row+ROW_OFFSET)<<ROW_SHIFT) |
+               (long) col;
+    }
+
+
+    public static int getLevel(long key){
+        return (int) (key>>>LEVEL_SHIFT) & 0xF;
+    }
+
+    public static int getShape(long key){
+        return (int) (key>>>SHAPE_SHIFT) & 0x3;
+    }
+
+    public static int getIndex(long key){
+        return (int) (key>>>INDEX_SHIFT) & 0x1;
+    }
+
+    public static int getRow(long key){
+        return (int) ((key>>>ROW_SHIFT) & ROW_MASK) - ROW_OFFSET;
+    }
+
+    public static int getCol(long key){
+        return (int) (key & COL_MASK);
+    }
+
+
+  //**************************************************************************
+  //** isValid
+  //**************************************************************************
+  /** Returns true if the key has a valid level and shape
+   */
+    public static boolean isValid(long key){
+        if (key<=0) return false;
+        int level = getLevel(key);
+        int shape = getShape(key);
+        return level>0 && shape>0;
+    }
+
+
+  //**************************************************************************
+  //** toString
+  //**************************************************************************
+  /** Returns a human readable representation of a key
+   */
+    public static String toString(long key){
+        return "shape=" + getShape(key) + ", level=" + getLevel(key) +
+        ", col=" + getCol(key) + ", row=" + getRow(key) + ", index=" + getIndex(key);
+    }
+}
@@ -0,0 +1,187 @@
+package com.kartographia.grid;
+import java.util.*;
+
+//******************************************************************************
+//**  CellTemplate
+//******************************************************************************
+/**
+ *   Used to represent the vertices of a grid cell relative to the lower left
+ *   corner of its bounding box, in units of the grid size. Every cell in a
+ *   grid with a given shape and density has the same vertices in projected
+ *   space, shifted by the origin of its bounding box. The template also
+ *   keeps track of the distinct y offsets so that projected y coordinates
+ *   can be shared across all the vertices in a row of cells.
+ *
+ ******************************************************************************/
+
+class CellTemplate {
+
+    final double[] x;
+    final double[] y;
+    final double dx;
+    final double dy;
+    final double minX;
+    final double maxX;
+    final double[] yValues;
+    final int[] yIndex;
+    int index;
+    int latOffset;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param shape Shape of individual grid cells (e.g SQUARE_SHAPE, HEX_SHAPE,
+   *  DIAMOND_SHAPE)
+   *  @param density Used to calculate the vertex spacing. A value of 1 implies
+   *  no densification.
+   *  @param dx Horizontal offset of the cell relative to the bounding box,
+   *  in units of the grid size
+   *  @param dy Vertical offset of the cell relative to the bounding box,
+   *  in units of the grid size
+   */
+    public CellTemplate(int shape, double density, double dx, double dy){
+        this.dx = dx;
+        this.dy = dy;
+
+
+      //Create ring in counter clockwise order starting with the top vertex
+      //(upper left for squares)
+        double[][] ring;
+        if (shape==GridBuilder.DIAMOND_SHAPE){
+            ring = new double[][]{
+                {0.5, 1}, {0, 0.5}, {0.5, 0}, {1, 0.5}, {0.5, 1}
+            };
+        }
+        else if (shape==GridBuilder.HEX_SHAPE){
+            ring = new double[][]{
+                {0.5, 1}, {0, 0.75}, {0, 0.25}, {0.5, 0}, {1, 0.25}, {1, 0.75}, {0.5, 1}
+            };
+        }
+        else{
+            ring = new double[][]{
+                {0, 1}, {0, 0}, {1, 0}, {1, 1}, {0, 1}
+            };
+        }
+
+
+      //Densify ring as needed. Uses the same logic as the JTS Densifier: each
+      //segment is split into equal parts no longer than the vertex spacing.
+        ArrayList<double[]> coords = new ArrayList<>();
+        if (density>1){
+            double perimeter = 0;
+            for (int i=1; i<ring.length; i++){
+                perimeter += length(ring[i-1], ring[i]);
+            }
+            double vertexSpacing = perimeter/density;
+            for (int i=1; i<ring.length; i++){
+                double[] p0 = ring[i-1];
+                double[] p1 = ring[i];
+                coords.add(p0);
+                int n = (int) (length(p0, p1)/vertexSpacing) + 1;
+                for (int j=1; j<n; j++){
+                    double f = j/(double) n;
+                    coords.add(new double[]{
+                        p0[0]+f*(p1[0]-p0[0]),
+                        p0[1]+f*(p1[1]-p0[1])
+                    });
+                }
+            }
+            coords.add(ring[ring.length-1]);
+        }
+        else{
+            coords.addAll(Arrays.asList(ring));
+        }
+
+
+      //Apply offsets, find the horizontal extent, and index the y values
+        int n = coords.size();
+        x = new double[n];
+        y = new double[n];
+        yIndex = new int[n];
+        TreeMap<Double, Integer> values = new TreeMap<>();
+        for (int i=0; i<n; i++){
+            double[] coord = coords.get(i);
+            x[i] = coord[0]+dx;
+            y[i] = coord[1]+dy;
+            values.put(y[i], 0);
+        }
+        double min = x[0], max = x[0];
+        for (int i=1; i<n; i++){
+            min = Math.min(min, x[i]);
+            max = Math.max(max, x[i]);
+        }
+        minX = min;
+        maxX = max;
+
+        yValues = new double[values.size()];
+        int idx = 0;
+        for (Map.Entry<Double, Integer> entry : values.entrySet()){
+            yValues[idx] = entry.getKey();
+            entry.setValue(idx);
+            idx++;
+        }
+        for (int i=0; i<n; i++){
+            yIndex[i] = values.get(y[i]);
+        }
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of vertices in the template, including the closing
+   *  vertex
+   */
+    public int size(){
+        return x.length;
+    }
+
+
+  //**************************************************************************
+  //** getTemplates
+  //**************************************************************************
+  /** Returns templates for all the cells associated with a bounding box in
+   *  the grid. Hexagons and diamonds have a second cell to the right and
+   *  slightly lower than the bounding box.
+   */
+    public static CellTemplate[] getTemplates(int shape, double density){
+        CellTemplate[] templates;
+        if (shape==GridBuilder.HEX_SHAPE){
+            templates = new CellTemplate[]{
+                new CellTemplate(shape, density, 0, 0),
+                new CellTemplate(shape, density, 0.5, -0.75)
+            };
+        }
+        else if (shape==GridBuilder.DIAMOND_SHAPE){
+            templates = new CellTemplate[]{
+                new CellTemplate(shape, density, 0, 0),
+                new CellTemplate(shape, density, 0.5, -0.5)
+            };
+        }
+        else{
+            templates = new CellTemplate[]{
+                new CellTemplate(shape, density, 0, 0)
+            };
+        }
+
+        int offset = 0;
+        for (int i=0; i<templates.length; i++){
+            CellTemplate template = templates[i];
+            template.index = i;
+            template.latOffset = offset;
+            offset += template.yValues.length;
+        }
+        return templates;
+    }
+
+
+  //**************************************************************************
+  //** length
+  //**************************************************************************
+    private static double length(double[] p0, double[] p1){
+        double dx = p1[0]-p0[0];
+        double dy = p1[1]-p0[1];
+        return Math.sqrt(dx*dx+dy*dy);
+    }
+}
@@ -0,0 +1,143 @@
+package com.kartographia.grid;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+//******************************************************************************
+//**  CylindricalTransform
+//******************************************************************************
+/**
+ *   Used to convert projected coordinates to WGS84 for cylindrical
+ *   projections (e.g. Behrmann, Web Mercator). In a cylindrical projection,
+ *   longitude is a linear function of x and latitude only depends on y. As a
+ *   result, longitudes can be computed with simple arithmetic and latitudes
+ *   can be computed once per row of grid cells instead of once per vertex.
+ *
+ ******************************************************************************/
+
+class CylindricalTransform {
+
+    private MathTransform projToWGS84;
+    private double a; //longitude at x=0
+    private double b; //degrees per unit x
+    private static final double tolerance = 1e-9; //degrees
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    private CylindricalTransform(MathTransform projToWGS84, double a, double b){
+        this.projToWGS84 = projToWGS84;
+        this.a = a;
+        this.b = b;
+    }
+
+
+  //**************************************************************************
+  //** create
+  //**************************************************************************
+  /** Returns a new CylindricalTransform if the given transform is separable
+   *  (i.e. longitude depends only on x and latitude only on y) and longitude
+   *  is linear in x. Returns null otherwise.
+   *  @param projToWGS84 Transform from projected coordinates to WGS84
+   *  (lat, lon axis order)
+   *  @param maxX Max x value in the projection (e.g. x coordinate of 180E)
+   *  @param maxY Max y value in the projection
+   */
+    public static CylindricalTransform create(MathTransform projToWGS84, double maxX, double maxY){
+        if (projToWGS84==null) return null;
+        try{
+
+          //Sample points inside the projection
+            double[] xs = new double[]{-0.9, -0.5, 0, 0.3, 0.8};
+            double[] ys = new double[]{-0.8, -0.3, 0, 0.4, 0.7};
+            int n = xs.length*ys.length;
+            double[] pts = new double[n*2];
+            int i = 0;
+            for (double x : xs){
+                for (double y : ys){
+                    pts[i++] = x*maxX;
+                    pts[i++] = y*maxY;
+                }
+            }
+            projToWGS84.transform(pts, 0, pts, 0, n);
+
+
+          //Compute longitude at x=0 and the change in longitude per unit x
+            int row0 = 2; //index of y=0 in ys
+            int col0 = 2; //index of x=0 in xs
+            double a = lon(pts, col0*ys.length+row0);
+            double b = (lon(pts, 4*ys.length+row0)-a)/(xs[4]*maxX);
+
+
+          //Check whether the transform is separable and linear in x
+            for (int c=0; c<xs.length; c++){
+                for (int r=0; r<ys.length; r++){
+                    int idx = c*ys.length+r;
+                    double lat = pts[idx*2];
+                    double lon = lon(pts, idx);
+                    if (Double.isNaN(lat) || Double.isNaN(lon)) return null;
+                    if (Math.abs(lat-pts[(col0*ys.length+r)*2])>tolerance) return null;
+                    if (Math.abs(lon-(a+b*xs[c]*maxX))>tolerance) return null;
+                }
+            }
+
+            return new CylindricalTransform(projToWGS84, a, b);
+        }
+        catch(Exception e){
+            return null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getLongitude
+  //**************************************************************************
+  /** Returns the longitude for a given x coordinate
+   */
+    public double getLongitude(double x){
+        return a+b*x;
+    }
+
+
+  //**************************************************************************
+  //** getLatitude
+  //**************************************************************************
+  /** Returns the latitude for a given y coordinate. Coordinates beyond the
+   *  poles are clamped to 90N/90S.
+   */
+    public double getLatitude(double y) throws TransformException {
+        double[] pt = new double[]{y};
+        getLatitudes(pt);
+        return pt[0];
+    }
+
+
+  //**************************************************************************
+  //** getLatitudes
+  //**************************************************************************
+  /** Used to compute latitudes for multiple y coordinates in one call.
+   *  Coordinates beyond the poles are clamped to 90N/90S.
+   *  @param ys Projected y coordinates. The array is updated in place with
+   *  latitudes.
+   */
+    public void getLatitudes(double[] ys) throws TransformException {
+        double[] pts = new double[ys.length*2];
+        for (int i=0; i<ys.length; i++){
+            pts[i*2+1] = ys[i];
+        }
+        projToWGS84.transform(pts, 0, pts, 0, ys.length);
+        for (int i=0; i<ys.length; i++){
+            double lat = pts[i*2];
+            if (Double.isNaN(lat)) lat = ys[i]>0 ? 90 : -90;
+            ys[i] = lat;
+        }
+    }
+
+
+  //**************************************************************************
+  //** lon
+  //**************************************************************************
+    private static double lon(double[] pts, int idx){
+        return pts[idx*2+1];
+    }
+}
@@ -0,0 +1,545 @@
+package com.kartographia.grid;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import javaxt.json.JSONObject;
+
+//******************************************************************************
+//**  GridAggregator
+//******************************************************************************
+/**
+ *   Used to bin points into grid cells and compute the count, sum, min, and
+ *   max of the points (or their weights) in each cell. Cells are found using
+ *   GridBuilder.locate() so no grid cells or geometries are created while
+ *   aggregating. Aggregates are stored in primitive hash maps keyed by cell
+ *   key. The maps are split into stripes, each with its own lock, so
+ *   multiple threads can add points at the same time. Example:
+ <pre>
+    GridAggregator aggregator = new GridAggregator(grid, shape, level);
+    aggregator.add(lons, lats, weights);
+    aggregator.getCells(writer);
+ </pre>
+ *   Aggregates are returned as GridCells with the count, sum, min, and max
+ *   in the info. Points without a weight have a weight of 1.
+ *
+ ******************************************************************************/
+
+public class GridAggregator {
+
+    private static final int batchSize = 1024; //points per locate() call
+
+    private GridBuilder grid;
+    private int shape;
+    private int level;
+    private Stripe[] stripes;
+    private int stripeMask;
+    private AtomicLong numPoints = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param grid Used to find cells
+   *  @param shape Shape of the grid cells (e.g SQUARE_SHAPE, HEX_SHAPE,
+   *  DIAMOND_SHAPE)
+   *  @param level Grid level
+   */
+    public GridAggregator(GridBuilder grid, int shape, int level){
+        this(grid, shape, level, 64);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param numStripes Number of locks used to synchronize updates. Rounded
+   *  up to a power of 2. Use more stripes if many threads are adding points
+   *  at the same time.
+   */
+    public GridAggregator(GridBuilder grid, int shape, int level, int numStripes){
+        if (shape<1 || shape>3) throw new IllegalArgumentException("Invalid shape: " + shape);
+        if (level<1 || level>GridBuilder.MAX_LEVEL) throw new IllegalArgumentException(
+            "Invalid level: " + level + " (expected 1-" + GridBuilder.MAX_LEVEL + ")");
+        this.grid = grid;
+        this.shape = shape;
+        this.level = level;
+
+        int n = 1;
+        while (n<numStripes && n<(1<<16)) n*=2;
+        stripes = new Stripe[n];
+        for (int i=0; i<n; i++) stripes[i] = new Stripe();
+        stripeMask = n-1;
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add a point with a weight of 1
+   *  @param lon Longitude (WGS84)
+   *  @param lat Latitude (WGS84)
+   */
+    public void add(double lon, double lat) throws Exception {
+        add(lon, lat, 1);
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add a weighted point. Points outside the grid are ignored (see
+   *  getRejected). Note that it is much faster to add points in bulk.
+   *  @param lon Longitude (WGS84)
+   *  @param lat Latitude (WGS84)
+   */
+    public void add(double lon, double lat, double weight) throws Exception {
+        numPoints.incrementAndGet();
+        long key = grid.locate(lon, lat, shape, level);
+        if (key<0){
+            rejected.incrementAndGet();
+            return;
+        }
+        Stripe stripe = stripes[getStripe(key)];
+        synchronized(stripe){
+            stripe.add(key, weight);
+        }
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add multiple points. Points are projected in batches and each
+   *  batch is sorted by stripe so that every lock is acquired at most once
+   *  per batch. Safe to call from multiple threads.
+   *  @param lon Longitudes (WGS84)
+   *  @param lat Latitudes (WGS84)
+   *  @param weights Weight of each point. Optional. If null, every point
+   *  will have a weight of 1.
+   */
+    public void add(double[] lon, double[] lat, double[] weights) throws Exception {
+        add(lon, lat, weights, lon.length);
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add the first n points in the given arrays
+   */
+    private void add(double[] lon, double[] lat, double[] weights, int n) throws Exception {
+        if (n==0) return;
+        long[] keys = new long[Math.min(n, batchSize)];
+        int[] order = new int[keys.length];
+        int[] offsets = new int[stripes.length+1];
+        double[] lons = null, lats = null;
+
+        for (int offset=0; offset<n; offset+=batchSize){
+            int len = Math.min(batchSize, n-offset);
+
+
+          //Find cells. Points are copied into arrays that are exactly the
+          //size of the batch as needed.
+            if (offset==0 && len==lon.length && len==lat.length){
+                grid.locate(lon, lat, shape, level, keys);
+            }
+            else{
+                if (lons==null || lons.length!=len){
+                    lons = new double[len];
+                    lats = new double[len];
+                    if (keys.length!=len) keys = new long[len];
+                }
+                System.arraycopy(lon, offset, lons, 0, len);
+                System.arraycopy(lat, offset, lats, 0, len);
+                grid.locate(lons, lats, shape, level, keys);
+            }
+
+
+          //Sort points by stripe (counting sort)
+            Arrays.fill(offsets, 0);
+            int numRejected = 0;
+            for (int i=0; i<len; i++){
+                if (keys[i]<0) numRejected++;
+                else offsets[getStripe(keys[i])+1]++;
+            }
+            for (int i=1; i<offsets.length; i++) offsets[i] += offsets[i-1];
+            for (int i=0; i<len; i++){
+                if (keys[i]>=0) order[offsets[getStripe(keys[i])]++] = i;
+            }
+
+
+          //Update stripes. Note that the offsets now point to the end of
+          //each stripe.
+            int start = 0;
+            for (int s=0; s<stripes.length; s++){
+                int end = offsets[s];
+                if (end==start) continue;
+                Stripe stripe = stripes[s];
+                synchronized(stripe){
+                    for (int i=start; i<end; i++){
+                        int idx = order[i];
+                        stripe.add(keys[idx], weights==null ? 1 : weights[offset+idx]);
+                    }
+                }
+                start = end;
+            }
+
+            numPoints.addAndGet(len);
+            if (numRejected>0) rejected.addAndGet(numRejected);
+        }
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add points from a stream. Each point is an array with a
+   *  longitude, latitude, and an optional weight (e.g. [lon, lat] or
+   *  [lon, lat, weight]). Points are buffered by each thread that consumes
+   *  the stream and added in batches so parallel streams are supported.
+   *  Example:
+   <pre>
+        aggregator.add(lines.parallel().map(line -> parse(line)));
+   </pre>
+   */
+    public void add(Stream<double[]> points) throws Exception {
+        final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<>();
+        final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>(){
+            protected Buffer initialValue(){
+                Buffer buffer = new Buffer();
+                buffers.add(buffer);
+                return buffer;
+            }
+        };
+
+        points.forEach(new Consumer<double[]>(){
+            public void accept(double[] point){
+                Buffer b = buffer.get();
+                b.lon[b.size] = point[0];
+                b.lat[b.size] = point[1];
+                b.weights[b.size] = point.length>2 ? point[2] : 1;
+                if (++b.size==batchSize) flush(b);
+            }
+        });
+
+        for (Buffer b : buffers) flush(b);
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Used to add buffered points from a stream
+   */
+    private void flush(Buffer buffer){
+        if (buffer.size==0) return;
+        try{
+            add(buffer.lon, buffer.lat, buffer.weights, buffer.size);
+        }
+        catch(Exception e){
+            throw new IllegalStateException(e);
+        }
+        finally{
+            buffer.size = 0;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getNumPoints
+  //**************************************************************************
+  /** Returns the number of points that have been added, including points
+   *  that were rejected
+   */
+    public long getNumPoints(){
+        return numPoints.get();
+    }
+
+
+  //**************************************************************************
+  //** getRejected
+  //**************************************************************************
+  /** Returns the number of points that were outside the grid (e.g. invalid
+   *  coordinates or points near the poles in Web Mercator)
+   */
+    public long getRejected(){
+        return rejected.get();
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of cells with at least one point
+   */
+    public int size(){
+        int n = 0;
+        for (Stripe stripe : stripes){
+            synchronized(stripe){
+                n += stripe.size;
+            }
+        }
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** getKeys
+  //**************************************************************************
+  /** Returns the keys of the cells with at least one point, in ascending
+   *  order
+   */
+    public long[] getKeys(){
+        long[] keys = new long[0];
+        int n = 0;
+        for (Stripe stripe : stripes){
+            synchronized(stripe){
+                if (n+stripe.size>keys.length) keys = Arrays.copyOf(keys, Math.max(n+stripe.size, keys.length*2));
+                for (long key : stripe.keys){
+                    if (key!=0) keys[n++] = key;
+                }
+            }
+        }
+        keys = Arrays.copyOf(keys, n);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+
+  //**************************************************************************
+  //** getCount
+  //**************************************************************************
+  /** Returns the number of points in a cell
+   */
+    public long getCount(long key){
+        Stripe stripe = stripes[getStripe(key)];
+        synchronized(stripe){
+            int i = stripe.indexOf(key);
+            return i<0 ? 0 : stripe.counts[i];
+        }
+    }
+
+
+  //**************************************************************************
+  //** getSum
+  //**************************************************************************
+  /** Returns the sum of the weights in a cell
+   */
+    public double getSum(long key){
+        Stripe stripe = stripes[getStripe(key)];
+        synchronized(stripe){
+            int i = stripe.indexOf(key);
+            return i<0 ? 0 : stripe.sums[i];
+        }
+    }
+
+
+  //**************************************************************************
+  //** getMin
+  //**************************************************************************
+  /** Returns the min weight in a cell or NaN if there are no points in the
+   *  cell
+   */
+    public double getMin(long key){
+        Stripe stripe = stripes[getStripe(key)];
+        synchronized(stripe){
+            int i = stripe.indexOf(key);
+            return i<0 ? Double.NaN : stripe.mins[i];
+        }
+    }
+
+
+  //**************************************************************************
+  //** getMax
+  //**************************************************************************
+  /** Returns the max weight in a cell or NaN if there are no points in the
+   *  cell
+   */
+    public double getMax(long key){
+        Stripe stripe = stripes[getStripe(key)];
+        synchronized(stripe){
+            int i = stripe.indexOf(key);
+            return i<0 ? Double.NaN : stripe.maxs[i];
+        }
+    }
+
+
+  //**************************************************************************
+  //** getCells
+  //**************************************************************************
+  /** Used to generate GridCells for every cell with at least one point, in
+   *  ascending order by key. The count, sum, min, and max are stored in the
+   *  info of each cell (e.g. {"count":12,"sum":12.0,"min":1.0,"max":1.0}).
+   *  The cells can be inserted into the database using a GridCellWriter.
+   *  Calls done() once all the cells have been generated. Assumes that no
+   *  points are added while cells are generated.
+   */
+    public void getCells(GridBuilder.CallBack callback) throws Exception {
+        try{
+            for (long key : getKeys()){
+                Cell cell = grid.getCell(key);
+                if (cell==null) continue;
+                GridCell gridCell = cell.toGridCell();
+                JSONObject info = new JSONObject();
+                Stripe stripe = stripes[getStripe(key)];
+                synchronized(stripe){
+                    int i = stripe.indexOf(key);
+                    if (i<0) continue;
+                    info.set("count", stripe.counts[i]);
+                    info.set("sum", stripe.sums[i]);
+                    info.set("min", stripe.mins[i]);
+                    info.set("max", stripe.maxs[i]);
+                }
+                gridCell.setInfo(info);
+                callback.add(gridCell);
+            }
+        }
+        finally{
+            callback.done();
+        }
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Used to remove all the aggregates
+   */
+    public void clear(){
+        for (Stripe stripe : stripes){
+            synchronized(stripe){
+                stripe.clear();
+            }
+        }
+        numPoints.set(0);
+        rejected.set(0);
+    }
+
+
+  //**************************************************************************
+  //** getStripe
+  //**************************************************************************
+    private int getStripe(long key){
+        return (int) (mix(key)>>>40) & stripeMask;
+    }
+
+
+  //**************************************************************************
+  //** mix
+  //**************************************************************************
+  /** Used to spread cell keys across the stripes and the slots in each
+   *  stripe. Keys of neighboring cells only differ in the low bits.
+   */
+    private static long mix(long key){
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key>>>29);
+    }
+
+
+  //**************************************************************************
+  //** Stripe
+  //**************************************************************************
+  /** Hash map used to store the aggregates for a subset of the cells. Uses
+   *  open addressing with linear probing and parallel arrays of primitives
+   *  so no objects are created per cell. Cell keys are always positive so an
+   *  empty slot has a key of 0. Not thread safe.
+   */
+    private static class Stripe {
+        private long[] keys;
+        private long[] counts;
+        private double[] sums;
+        private double[] mins;
+        private double[] maxs;
+        private int size;
+
+        public Stripe(){
+            clear();
+        }
+
+        public void clear(){
+            init(16);
+            size = 0;
+        }
+
+        private void init(int capacity){
+            keys = new long[capacity];
+            counts = new long[capacity];
+            sums = new double[capacity];
+            mins = new double[capacity];
+            maxs = new double[capacity];
+        }
+
+        public void add(long key, double weight){
+            int mask = keys.length-1;
+            int i = (int) mix(key) & mask;
+            while (true){
+                long k = keys[i];
+                if (k==key){
+                    counts[i]++;
+                    sums[i] += weight;
+                    if (weight<mins[i]) mins[i] = weight;
+                    if (weight>maxs[i]) maxs[i] = weight;
+                    return;
+                }
+                if (k==0) break;
+                i = (i+1) & mask;
+            }
+
+            keys[i] = key;
+            counts[i] = 1;
+            sums[i] = weight;
+            mins[i] = weight;
+            maxs[i] = weight;
+            if (++size*4>keys.length*3) resize();
+        }
+
+        public int indexOf(long key){
+            int mask = keys.length-1;
+            int i = (int) mix(key) & mask;
+            while (true){
+                long k = keys[i];
+                if (k==key) return i;
+                if (k==0) return -1;
+                i = (i+1) & mask;
+            }
+        }
+
+        private void resize(){
+            long[] keys = this.keys;
+            long[] counts = this.counts;
+            double[] sums = this.sums;
+            double[] mins = this.mins;
+            double[] maxs = this.maxs;
+            init(keys.length*2);
+
+            int mask = this.keys.length-1;
+            for (int j=0; j<keys.length; j++){
+                long key = keys[j];
+                if (key==0) continue;
+                int i = (int) mix(key) & mask;
+                while (this.keys[i]!=0) i = (i+1) & mask;
+                this.keys[i] = key;
+                this.counts[i] = counts[j];
+                this.sums[i] = sums[j];
+                this.mins[i] = mins[j];
+                this.maxs[i] = maxs[j];
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Buffer
+  //**************************************************************************
+  /** Used to buffer points from a stream
+   */
+    private static class Buffer {
+        private double[] lon = new double[batchSize];
+        private double[] lat = new double[batchSize];
+        private double[] weights = new double[batchSize];
+        private int size;
+    }
+}
@@ -4,7 +4,14 @@ import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
+import java.io.Flushable;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.stream.*;
+import java.util.zip.CRC32;
 import javaxt.utils.Console;
 
 //******************************************************************************
@@ -21,12 +28,23 @@ public class GridBuilder {
     public final static int SQUARE_SHAPE = 1;
     public final static int DIAMOND_SHAPE = 3;
     public final static int HEX_SHAPE = 2;
+    public final static int EXTEND_DATELINE = 1;
+    public final static int SPLIT_DATELINE = 2;
+    public final static int MAX_LEVEL = 12; //deepest level that fits in a CellKey
     private int projID;
     private CoordinateReferenceSystem proj;
     private CoordinateReferenceSystem wgs84 = getCRS("EPSG:4326");
     private MathTransform WGS84toProj;
     private MathTransform ProjToWGS84;
     private Console console = new Console();
+    private AtomicReferenceArray<Grid> grids = new AtomicReferenceArray<>(4*16);
+    private volatile GridMetrics metrics;
+    private volatile GridCheckpoint checkpoint;
+    private volatile int[] shard;
+    private volatile int datelineMode = EXTEND_DATELINE;
+
+    private static final int tileSize = 4096; //max bounding boxes per tile
+    private static final int LATITUDE_CACHE_SIZE = 16384; //max rows with cached latitudes
 
 
     public interface CallBack {
@@ -35,6 +53,15 @@ public class GridBuilder {
     }
 
 
+  /** Used to receive lightweight cells from createGrid(). Note that the
+   *  cells are reused so a cell is only valid until the add() method returns.
+   */
+    public interface CellCallBack {
+        public void add(Cell cell);
+        public void done();
+    }
+
+
   //**************************************************************************
   //** Constructor
   //**************************************************************************
@@ -97,6 +124,107 @@ public class GridBuilder {
     }
 
 
+  //**************************************************************************
+  //** setMetrics
+  //**************************************************************************
+  /** Used to collect runtime metrics (e.g. cells/sec, percent complete)
+   *  whenever a grid is generated via createGrid(). Metrics are not collected
+   *  if null (default).
+   */
+    public void setMetrics(GridMetrics metrics){
+        this.metrics = metrics;
+    }
+
+
+  //**************************************************************************
+  //** getMetrics
+  //**************************************************************************
+    public GridMetrics getMetrics(){
+        return metrics;
+    }
+
+
+  //**************************************************************************
+  //** setCheckpoint
+  //**************************************************************************
+  /** Used to make createGrid() resumable. When a checkpoint is set, the grid
+   *  is generated in bands of columns. Each band is recorded in the
+   *  checkpoint once all of its cells have been generated and the callback
+   *  has been flushed (if the callback implements java.io.Flushable). If
+   *  createGrid() is interrupted, it can be called again with the same
+   *  checkpoint to skip the completed bands. Cells in the band that was
+   *  interrupted are regenerated with the same keys so callbacks that ignore
+   *  duplicate keys (e.g. GridCellWriter) won't insert them twice. Bands with
+   *  cells that the callback failed to add (i.e. add() threw an exception)
+   *  are not recorded so they are regenerated when the grid is resumed.
+   */
+    public void setCheckpoint(GridCheckpoint checkpoint){
+        this.checkpoint = checkpoint;
+    }
+
+
+  //**************************************************************************
+  //** getCheckpoint
+  //**************************************************************************
+    public GridCheckpoint getCheckpoint(){
+        return checkpoint;
+    }
+
+
+  //**************************************************************************
+  //** setShard
+  //**************************************************************************
+  /** Used to generate a slice of a grid so that a large grid can be split
+   *  across multiple processes or machines. The grid is split into bands of
+   *  columns and a shard consists of every nth band, starting with the given
+   *  index. Every cell is generated by the bounding box it is associated
+   *  with so cells that extend beyond a band (e.g. the second cell in a hex
+   *  or diamond box) and cells along the left border are only generated
+   *  once. As a result, the shards are disjoint and, combined, produce the
+   *  same cells as the entire grid. Applies to createGrid().
+   *  @param index Index of the shard (0 to numShards-1)
+   *  @param numShards Total number of shards. Use 1 to generate the entire
+   *  grid (default).
+   */
+    public void setShard(int index, int numShards){
+        if (numShards<1 || index<0 || index>=numShards){
+            throw new IllegalArgumentException("Invalid shard: " + index + "/" + numShards);
+        }
+        shard = numShards==1 ? null : new int[]{index, numShards};
+    }
+
+
+  //**************************************************************************
+  //** setDatelineMode
+  //**************************************************************************
+  /** Used to specify how to represent cells that cross the dateline. The
+   *  grid wraps around at the dateline so every cell is generated once, by
+   *  the column that lies on the right (east) side of the grid. Options:
+   *  <ul>
+   *  <li>EXTEND_DATELINE - Cells are represented by a single polygon with
+   *  longitudes greater than 180 (e.g. 178.5 to 181.5). Default.</li>
+   *  <li>SPLIT_DATELINE - Cells are split at the dateline into a multipolygon
+   *  so that all the longitudes are between -180 and 180.</li>
+   *  </ul>
+   *  Cells that cross the dateline are found using the column index so no
+   *  geometry is required. Applies to createGrid(), stream(), and getCell().
+   */
+    public void setDatelineMode(int mode){
+        if (mode!=EXTEND_DATELINE && mode!=SPLIT_DATELINE){
+            throw new IllegalArgumentException("Invalid dateline mode: " + mode);
+        }
+        datelineMode = mode;
+    }
+
+
+  //**************************************************************************
+  //** getDatelineMode
+  //**************************************************************************
+    public int getDatelineMode(){
+        return datelineMode;
+    }
+
+
   //**************************************************************************
   //** createGrid
   //**************************************************************************
@@ -105,9 +233,10 @@ public class GridBuilder {
    *  @param shape Shape of individual grid cells (e.g SQUARE_SHAPE, HEX_SHAPE,
    *  DIAMOND_SHAPE)
    *
-   *  @param level Used to specify the size of individual grid cells. Currently
-   *  supports values from 1-9 where 1 is the lowest resolution resulting in
-   *  large grid cells.
+   *  @param level Used to specify the size of individual grid cells. Supports
+   *  values from 1 to MAX_LEVEL (12) where 1 is the lowest resolution
+   *  resulting in large grid cells. Each level subdivides the cells in the
+   *  previous level by a factor of 4 in both directions.
    *
    *  @param density Used to calculate the vertex spacing. A value of 1 implies
    *  no densification. For applications that require high precision or for
@@ -143,538 +272,2235 @@ public class GridBuilder {
    </pre>
    */
     public void createGrid(int shape, int level, double density,
-        Geometry spatialFilter, int numThreads, CallBack callback) throws Exception {
-
-
-     //Bounding box in WGS84. Coordinates must be specified in the
-     //following order: left,bottom,right,top.
-        Double[] bbox = null;
-        if (spatialFilter!=null){
-            Envelope envelope = spatialFilter.getEnvelopeInternal();
-            double west = envelope.getMinX();
-            double south = envelope.getMinY();
-            double east = envelope.getMaxX();
-            double north = envelope.getMaxY();
-            bbox = new Double[]{west, south, east, north};
-        }
-
+        Geometry spatialFilter, int numThreads, final CallBack callback) throws Exception {
 
+        createGrid(shape, level, level, density, spatialFilter, numThreads, new CellCallBack(){
+            public void add(Cell cell){
+                callback.add(cell.toGridCell());
+            }
+            public void done(){
+                callback.done();
+            }
+        }, callback instanceof Flushable ? (Flushable) callback : null);
+    }
 
-      //Compute cell multiplier. Subdivide each cell by a factor of 2
-        int multiplier;
-        switch(level){
-            case 1: multiplier = 1; break;
-            case 2: multiplier = 2*2; break;
-            case 3: multiplier = 4*4; break;
-            case 4: multiplier = 8*8; break;
-            case 5: multiplier = 16*16; break;
-            case 6: multiplier = 32*32; break;
-            case 7: multiplier = 64*64; break;
-            case 8: multiplier = 128*128; break;
-            case 9: multiplier = 256*256; break;
-            default: multiplier = 1; level = 1; break;
-        }
 
+  //**************************************************************************
+  //** createGrid
+  //**************************************************************************
+  /** Used to generate grid cells without creating a GridCell and a JTS
+   *  geometry for every cell. Cells are passed to the callback using a
+   *  reusable Cell that exposes the grid indices and a packed array of
+   *  coordinates. A geometry is only created if the callback asks for one
+   *  (e.g. Cell.getGeom() or Cell.toGridCell()). See the other createGrid()
+   *  method for a description of the parameters.
+   */
+    public void createGrid(int shape, int level, double density,
+        Geometry spatialFilter, int numThreads, CellCallBack callback) throws Exception {
+        createGrid(shape, level, level, density, spatialFilter, numThreads, callback,
+        callback instanceof Flushable ? (Flushable) callback : null);
+    }
 
 
-      //Compute left and right bounds and compute grid size
-        GeometryFactory geometryFactory = new GeometryFactory();
-        Point left = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(0,-180,0)), WGS84toProj);
-        Point right = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(0,180,0)), WGS84toProj);
-        double gridSize = (right.getX()*2)/(double)(48*multiplier);
-        gridSize = (right.getX()*2)/(double)(30*multiplier);
+  //**************************************************************************
+  //** createGrid
+  //**************************************************************************
+  /** Used to generate cells for a range of levels in a single call. Levels
+   *  are generated from coarse to fine using the same pool of threads and
+   *  the same spatial filter. Each cell is tagged with the key of its parent
+   *  (see Cell.getParent) so there is no need to find parents using spatial
+   *  joins. Works with checkpoints and shards. See the other createGrid()
+   *  methods for a description of the other parameters.
+   *  @param minLevel Coarsest level to generate (e.g. 1)
+   *  @param maxLevel Finest level to generate
+   */
+    public void createGrid(int shape, int minLevel, int maxLevel, double density,
+        Geometry spatialFilter, int numThreads, CellCallBack callback) throws Exception {
+        if (minLevel>maxLevel) throw new IllegalArgumentException(
+            "Invalid levels: " + minLevel + "-" + maxLevel);
+        createGrid(shape, minLevel, maxLevel, density, spatialFilter, numThreads, callback,
+        callback instanceof Flushable ? (Flushable) callback : null);
+    }
 
 
+  //**************************************************************************
+  //** createGrid
+  //**************************************************************************
+  /** Same as the other multi-level createGrid() method except that cells are
+   *  returned as GridCells. The parent key is stored in the info of each
+   *  GridCell (e.g. {"parent": 1234}).
+   */
+    public void createGrid(int shape, int minLevel, int maxLevel, double density,
+        Geometry spatialFilter, int numThreads, final CallBack callback) throws Exception {
+        if (minLevel>maxLevel) throw new IllegalArgumentException(
+            "Invalid levels: " + minLevel + "-" + maxLevel);
+        createGrid(shape, minLevel, maxLevel, density, spatialFilter, numThreads, new CellCallBack(){
+            public void add(Cell cell){
+                callback.add(cell.toGridCell());
+            }
+            public void done(){
+                callback.done();
+            }
+        }, callback instanceof Flushable ? (Flushable) callback : null);
+    }
 
-      //Compute offset as needed
-        double leftOffset = 0.0;
-        if ((shape==DIAMOND_SHAPE) && level>1) leftOffset = gridSize/2d;
 
+  //**************************************************************************
+  //** createGrid
+  //**************************************************************************
+  /** @param output Flushed after every band when a checkpoint is used.
+   *  Optional.
+   */
+    private void createGrid(int shape, int minLevel, int maxLevel, double density,
+        Geometry spatialFilter, int numThreads, CellCallBack callback,
+        Flushable output) throws Exception {
 
 
-      //Compute top and bottom bounds
-        Point top = null;
-        Point bottom = null;
-        try{
-            top = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(90,0,0)), WGS84toProj);
-            bottom = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(-90,0,0)), WGS84toProj);
+      //Generate grid cells. The grid is split into blocks that are processed
+      //independently by a pool of worker threads. When a spatial filter is
+      //given, blocks are aligned with the cells in the coarser levels of the
+      //grid so that entire blocks can be skipped (or accepted) at once.
+        if (numThreads<1) numThreads = 1;
+        GridMetrics metrics = this.metrics;
+        GridCheckpoint checkpoint = this.checkpoint;
+        int[] shard = this.shard;
+        boolean multiLevel = minLevel<maxLevel;
+
+
+      //Get grids for each level. The spatial filter is shared by all the
+      //levels. Cells in multi-level grids are tagged with their parents.
+        ArrayList<Grid> grids = new ArrayList<>();
+        Envelope envelope = spatialFilter==null ? null : spatialFilter.getEnvelopeInternal();
+        SpatialFilter filter = null;
+        for (int level=minLevel; level<=maxLevel; level++){
+            Grid grid = getGrid(shape, level, density, envelope);
+            if (grid==null) continue;
+            if (spatialFilter!=null){
+                if (filter==null) filter = new SpatialFilter(spatialFilter);
+                grid.spatialFilter = filter;
+            }
+            if (multiLevel && level>1) grid.parent = getGrid(shape, level-1);
+            grids.add(grid);
         }
-        catch(Exception e){
-
-          //The projected coordinate system probably doesn't extend all the way
-          //to the poles so we'll have to get the max extent of the projection
-            org.geotools.metadata.iso.extent.GeographicBoundingBoxImpl box =
-                (org.geotools.metadata.iso.extent.GeographicBoundingBoxImpl)
-                proj.getDomainOfValidity().getGeographicElements().iterator().next();
 
 
-          //Get the north bounding latitude
-            double northBoundLatitude = box.getNorthBoundLatitude();
-
-
-          //Calculate max y by incrementally adding the gridSize until we reach the northBoundLatitude
-            double y = gridSize;
-            while (true){
-                try{
-                    Point p = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(0,y,0)), ProjToWGS84);
-                    double lat = p.getX(); //Yeah, getX is a little wierd...
-                    if (lat>northBoundLatitude){
-                        top = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(lat,0,0)), WGS84toProj);
-                        bottom = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(-lat,0,0)), WGS84toProj);
-                        break;
-                    }
-                    y += gridSize;
-
-                }
-                catch(Exception ex){
-                    break;
+      //Get bands of columns in the current shard
+        ArrayList<ArrayList<Block>> bands = new ArrayList<>();
+        for (Grid grid : grids){
+            ArrayList<Block> arr = null;
+            if (checkpoint!=null || shard!=null){
+                arr = new ArrayList<>();
+                for (Block band : grid.getBands()){
+                    int id = Math.floorDiv(band.minCol, band.blockSize);
+                    if (shard==null || Math.floorMod(id, shard[1])==shard[0]) arr.add(band);
                 }
             }
+            bands.add(arr);
         }
 
-        if (top==null || bottom==null) throw new IllegalArgumentException();
-
 
-
-      //Spawn threads
-        List pool = new LinkedList();
-        int maxPoolSize = 50000;
-        ArrayList<Thread> threads = new ArrayList<>();
-        if (numThreads<1) numThreads = 1;
-        for (int i=0; i<numThreads; i++){
-            Thread thread = new Thread(new CellGenerator(shape, level, density, spatialFilter, projID, pool, callback));
-            threads.add(thread);
-            thread.start();
+        if (metrics!=null){
+            long numBoxes = 0;
+            for (int i=0; i<grids.size(); i++){
+                if (bands.get(i)==null){
+                    numBoxes += grids.get(i).getRoot().size();
+                }
+                else{
+                    for (Block band : bands.get(i)) numBoxes += band.size();
+                }
+            }
+            metrics.start(numBoxes);
         }
 
 
+        try{
+            if (!grids.isEmpty()){
+                ForkJoinPool pool = new ForkJoinPool(numThreads);
+                try{
+                    if (checkpoint!=null){
+                        String header = getCheckpointHeader(grids.get(grids.size()-1), density, spatialFilter);
+                        if (multiLevel) header += ",levels=" + minLevel + "-" + maxLevel;
+                        if (shard!=null) header += ",shard=" + shard[0] + "/" + shard[1];
+                        checkpoint.open(header);
+                    }
 
-
-      //Transform bbox as needed
-        if (bbox!=null) bbox = transFormBBox(bbox);
-
-
+                    for (int i=0; i<grids.size(); i++){
+                        Grid grid = grids.get(i);
+                        grid.callback = callback;
+                        grid.metrics = metrics;
+                        if (bands.get(i)==null){
+                            pool.invoke(new GridTask(grid, grid.getRoot()));
+                            continue;
+                        }
 
 
+                      //Generate cells one band at a time. Skip bands that
+                      //were completed in a previous run. Bands in multi-level
+                      //grids are identified by the band index and the level.
+                        for (Block band : bands.get(i)){
+                            int id = Math.floorDiv(band.minCol, band.blockSize);
+                            if (multiLevel) id = id*16+grid.level;
+                            if (checkpoint==null){
+                                pool.invoke(new GridTask(grid, band));
+                                continue;
+                            }
+                            if (checkpoint.isComplete(id)){
+                                if (metrics!=null) metrics.boxes.add(band.size());
+                                continue;
+                            }
+                            long errors = grid.errors.get();
+                            pool.invoke(new GridTask(grid, band));
+                            if (output!=null) output.flush();
 
-      //Generate grid cells
-        for (double x=left.getX()-leftOffset; x<right.getX(); x+=gridSize){
 
-          //Skip cells as needed
-            if (bbox!=null){
-                if (x+gridSize<bbox[0] || x>bbox[2]) continue;
+                          //Don't record bands with cells that the callback
+                          //failed to add so they are regenerated on resume
+                            errors = grid.errors.get()-errors;
+                            if (errors>0){
+                                console.log("Failed to add " + errors + " cells in band " + id +
+                                ". The band will be regenerated when the grid is resumed.");
+                                continue;
+                            }
+                            checkpoint.setComplete(id);
+                        }
+                    }
+                }
+                finally{
+                    pool.shutdown();
+                    if (checkpoint!=null) checkpoint.close();
+                }
             }
+        }
+        finally{
+            callback.done();
+            if (metrics!=null) metrics.stop();
+        }
+    }
 
 
+  //**************************************************************************
+  //** createGridFile
+  //**************************************************************************
+  /** Used to generate a grid and save the cells in a binary file that can be
+   *  read via the GridFile class. The file has a fixed length record for
+   *  every cell in the grid (or the spatial filter), sorted by key, so cells
+   *  can be retrieved by key without loading the file. The keys are computed
+   *  before the grid is generated so that every cell is written directly to
+   *  its record. When a checkpoint is set and the checkpoint file exists,
+   *  the existing file is reopened and only the bands that weren't completed
+   *  are written. Shards aren't supported since every shard would have to
+   *  write to the same file. See createGrid() for a description of the
+   *  other parameters.
+   *  @throws IllegalArgumentException if the grid has more cells than a file
+   *  can hold (see GridFile.MAX_RECORDS) or if a shard is set
+   *  @throws java.io.IOException if there isn't enough disk space for the
+   *  file, if the file being resumed doesn't match the grid, or if any of
+   *  the cells couldn't be written
+   */
+    public void createGridFile(int shape, int level, double density,
+        Geometry spatialFilter, int numThreads, java.io.File file) throws Exception {
 
-          //Northern latitudes (0 to 90N)
-            for (double y=0; y<=top.getY(); y+=gridSize){
+        if (shard!=null) throw new IllegalArgumentException(
+            "Shards are not supported by grid files");
+        GridCheckpoint checkpoint = this.checkpoint;
+        boolean resume = checkpoint!=null && checkpoint.getFile().exists();
 
+        Grid grid = getGrid(shape, level, density, spatialFilter);
+        CellTemplate[] templates = CellTemplate.getTemplates(shape, density);
+        int maxPoints = grid==null ? templates[0].size() : grid.getMaxPoints();
 
-              //Skip cells as needed
-                if (bbox!=null){
-                    if (y+gridSize<bbox[1] || y>bbox[3]) continue;
-                }
 
+      //Check the number of cells before computing any keys. The estimate is
+      //exact when there is no spatial filter.
+        long numCells = estimateCellCount(shape, level, spatialFilter);
+        if (numCells>GridFile.MAX_RECORDS) throw new IllegalArgumentException(
+            "Grid is too large for a grid file: approximately " + numCells +
+            " cells (" + GridFile.getSize(numCells, maxPoints) + " bytes). " +
+            "Use a lower level or a smaller spatial filter.");
 
-              //Create bbox for the grid cell
-                Coordinate[] coords = new Coordinate[]{
-                    new Coordinate(x,y+gridSize,0), //ul
-                    new Coordinate(x,y,0), //ll
-                    new Coordinate(x+gridSize,y,0), //lr
-                    new Coordinate(x+gridSize,y+gridSize,0), //ur
-                    new Coordinate(x,y+gridSize,0)
-                };
 
+      //Check whether there is enough memory for the keys (see MAX_RECORDS)
+        long memory = numCells*GridFile.BYTES_PER_KEY;
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        if (memory>maxMemory) throw new IllegalArgumentException(
+            "Not enough memory to create a grid file with approximately " + numCells +
+            " cells: the keys require " + memory + " bytes (max heap is " + maxMemory +
+            " bytes). Increase the heap size (-Xmx) or use a smaller spatial filter.");
 
 
-              //Update y coordinate as needed
-                if (shape==HEX_SHAPE){
-                    y += (gridSize/2.0);
+      //Create file with a record for every cell or reopen the file when
+      //resuming from a checkpoint
+        if (numThreads<1) numThreads = 1;
+        long[] keys = new long[0];
+        if (grid!=null){
+            ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try{
+                keys = getKeys(grid, false, false, pool);
+            }
+            finally{
+                pool.shutdown();
+            }
+        }
+        Arrays.sort(keys);
+        final GridFile gridFile = grid==null ?
+            new GridFile(file, shape, level, projID, templates.length, maxPoints,
+            keys, 0, 0, 0, density, resume) :
+            new GridFile(file, shape, level, projID, templates.length, maxPoints,
+            keys, grid.gridSize, grid.x0, grid.rowHeight, density, resume);
+
+
+      //Generate cells
+        final AtomicLong errors = new AtomicLong();
+        createGrid(shape, level, level, density, spatialFilter, numThreads, new CellCallBack(){
+            public void add(Cell cell){
+                try{
+                    gridFile.put(cell);
+                }
+                catch(RuntimeException e){
+                    errors.incrementAndGet();
+                    throw e;
                 }
+            }
+            public void done(){
+                gridFile.force();
+            }
+        }, new Flushable(){ //called before a band is checkpointed
+            public void flush(){
+                gridFile.force();
+            }
+        });
+        if (errors.get()>0) throw new java.io.IOException(
+            "Failed to write " + errors.get() + " cells to " + file);
+    }
 
 
+  //**************************************************************************
+  //** getCheckpointHeader
+  //**************************************************************************
+  /** Returns a string used to identify a grid in a checkpoint file. The
+   *  density is only included if it isn't the default (1) so that existing
+   *  checkpoint files can still be resumed.
+   */
+    private String getCheckpointHeader(Grid grid, double density, Geometry spatialFilter){
+        String aoi = "none";
+        if (spatialFilter!=null){
+            CRC32 crc = new CRC32();
+            crc.update(new com.vividsolutions.jts.io.WKBWriter().write(spatialFilter));
+            aoi = Long.toHexString(crc.getValue());
+        }
+        return "shape=" + grid.shape + ",level=" + grid.level + ",proj=" + projID +
+        ",band=" + grid.getBandSize() + ",aoi=" + aoi +
+        (density==1 ? "" : ",density=" + density) +
+        (grid.datelineMode==SPLIT_DATELINE ? ",dateline=split" : "");
+    }
 
 
+  //**************************************************************************
+  //** stream
+  //**************************************************************************
+  /** Returns a stream of grid cells. Unlike createGrid(), cells are generated
+   *  lazily as the stream is consumed so callers can limit, filter, or batch
+   *  cells without buffering the entire grid. The stream is sequential by
+   *  default. Use parallel() to generate cells using multiple threads.
+   *  Example:
+   <pre>
+        grid.stream(shape, level, density, geom)
+            .parallel()
+            .limit(1000)
+            .forEach(cell -> System.out.println(cell.getGeom()));
+   </pre>
+   *  @param shape Shape of individual grid cells (e.g SQUARE_SHAPE, HEX_SHAPE,
+   *  DIAMOND_SHAPE)
+   *  @param level Used to specify the size of individual grid cells
+   *  @param density Used to calculate the vertex spacing. A value of 1 implies
+   *  no densification.
+   *  @param spatialFilter Used to define a spatial filter in WGS84. If null,
+   *  cells will be generated for the entire planet.
+   */
+    public Stream<GridCell> stream(int shape, int level, double density,
+        Geometry spatialFilter) throws Exception {
+        Grid grid = getGrid(shape, level, density, spatialFilter);
+        if (grid==null) return Stream.empty();
+        return StreamSupport.stream(new GridSpliterator(grid, grid.getRoot()), false);
+    }
 
-              //Create cells
-                synchronized(pool){
-                    while (pool.size()>maxPoolSize){
-                        try{
-                            pool.wait();
-                        }
-                        catch(java.lang.InterruptedException e){
-                            break;
-                        }
-                    }
 
-                    pool.add(coords);
-                    pool.notify();
+  //**************************************************************************
+  //** estimateCellCount
+  //**************************************************************************
+  /** Returns an estimate of the number of cells that createGrid() will
+   *  generate for a given shape, level, and spatial filter. The estimate is
+   *  computed from the extents of the grid and the area and perimeter of the
+   *  spatial filter in projected space so no cells are generated. The
+   *  estimate is exact when there is no spatial filter.
+   *  @param spatialFilter Spatial filter in WGS84. Optional.
+   */
+    public long estimateCellCount(int shape, int level, Geometry spatialFilter) throws Exception {
+        Grid grid = getGrid(shape, level, 1,
+            spatialFilter==null ? null : spatialFilter.getEnvelopeInternal());
+        if (grid==null) return 0;
+        long maxCells = grid.getRoot().size()*grid.templates.length;
+        if (spatialFilter==null) return maxCells;
+        if (spatialFilter.isEmpty()) return 0;
+
+
+      //Project the spatial filter. Latitudes are clamped to the extents of
+      //the grid to avoid projecting the poles (e.g. Web Mercator).
+        double[] lats = new double[2];
+        for (int i=0; i<2; i++){
+            double y = i==0 ? grid.minRow*grid.rowHeight : (grid.maxRow+1)*grid.rowHeight;
+            double[] pt = new double[]{0, y};
+            try{
+                ProjToWGS84.transform(pt, 0, pt, 0, 1);
+                lats[i] = pt[0];
+            }
+            catch(Exception e){
+                lats[i] = Double.NaN;
+            }
+            if (Double.isNaN(lats[i])) lats[i] = i==0 ? -90 : 90; //beyond the poles
+        }
+        final double minLat = Math.min(lats[0], lats[1]);
+        final double maxLat = Math.max(lats[0], lats[1]);
+        final double[] pt = new double[2];
+        Geometry geom = (Geometry) spatialFilter.clone();
+        geom.apply(new CoordinateFilter(){
+            public void filter(Coordinate coord){
+                pt[0] = Math.max(minLat, Math.min(maxLat, coord.y));
+                pt[1] = coord.x;
+                try{
+                    WGS84toProj.transform(pt, 0, pt, 0, 1);
                 }
-
+                catch(Exception e){
+                    throw new IllegalArgumentException(e);
+                }
+                coord.x = pt[0];
+                coord.y = pt[1];
             }
+        });
+        geom.geometryChanged();
+
+
+      //Estimate the number of cells. Cells along the boundary of a polygon
+      //are partially covered by the polygon so we add roughly half the cells
+      //crossed by the boundary. A line crosses about 4/PI cells per cell width.
+        double cellArea = grid.gridSize*grid.rowHeight/grid.templates.length;
+        double cellSize = Math.sqrt(cellArea);
+        double numCells = 0;
+        for (int i=0; i<geom.getNumGeometries(); i++){
+            Geometry part = geom.getGeometryN(i);
+            if (part instanceof Polygonal){
+                numCells += part.getArea()/cellArea + 0.64*part.getLength()/cellSize;
+            }
+            else if (part instanceof Lineal){
+                numCells += 1.27*part.getLength()/cellSize + 1;
+            }
+            else{
+                numCells += part.getNumPoints();
+            }
+        }
+        return Math.min(maxCells, Math.max(1, Math.round(numCells)));
+    }
 
 
-          //Southern latitudes (0 to 90S)
-            for (double y=-gridSize; y>bottom.getY()-gridSize; y-=gridSize){
-
+  //**************************************************************************
+  //** estimateOutputSize
+  //**************************************************************************
+  /** Returns an estimate of the number of bytes needed to store the cells
+   *  generated by createGrid() as WKB. See estimateCellCount() for more info.
+   *  @param density Used to calculate the vertex spacing (see createGrid)
+   */
+    public long estimateOutputSize(int shape, int level, double density,
+        Geometry spatialFilter) throws Exception {
+        long numCells = estimateCellCount(shape, level, spatialFilter);
+        if (numCells==0) return 0;
+
+
+      //WKB polygon: byte order (1), type (4), number of rings (4), number
+      //of points (4), and 16 bytes per point
+        CellTemplate[] templates = CellTemplate.getTemplates(shape, density);
+        double numPoints = 0;
+        for (CellTemplate template : templates) numPoints += template.size();
+        numPoints = numPoints/templates.length;
+        return Math.round(numCells*(13+16*numPoints));
+    }
 
-              //Skip cells as needed
-                if (bbox!=null){
-                    if (y<bbox[1] || y>bbox[3]) continue;
-                }
 
+  //**************************************************************************
+  //** getCell
+  //**************************************************************************
+  /** Returns a cell for a given key. Returns null if the key is invalid or
+   *  if the cell is outside the grid.
+   *  @param key A key generated by this class (see CellKey)
+   */
+    public Cell getCell(long key) throws Exception {
+        if (!CellKey.isValid(key)) return null;
+        Grid grid = getGrid(CellKey.getShape(key), CellKey.getLevel(key));
+        if (grid==null) return null;
+
+        int col = CellKey.getCol(key);
+        int row = CellKey.getRow(key);
+        int index = CellKey.getIndex(key);
+        if (col<grid.minCol || col>grid.maxCol || row<grid.minRow || row>grid.maxRow) return null;
+        if (index>=grid.templates.length) return null;
+
+        CellTemplate template = grid.templates[index];
+        if (grid.isWrapped(col, template)) return null;
+        int datelineMode = this.datelineMode;
+        Cell cell = new Cell(grid.shape, grid.level, projID, grid.getMaxPoints(datelineMode));
+        CellGenerator generator = new CellGenerator(grid, datelineMode, cell);
+        if (!generator.getCell(template, col, row, grid.getLatitudes(row), cell.coords)) return null;
+        cell.set(col, row, index, template.size());
+        generator.splitCell(col, template);
+        return cell;
+    }
 
 
-              //Create bbox for the grid cell
-                Coordinate[] coords = new Coordinate[]{
-                    new Coordinate(x,y+gridSize,0), //ul
-                    new Coordinate(x,y,0), //ll
-                    new Coordinate(x+gridSize,y,0), //lr
-                    new Coordinate(x+gridSize,y+gridSize,0), //ur
-                    new Coordinate(x,y+gridSize,0)
-                };
+  //**************************************************************************
+  //** locate
+  //**************************************************************************
+  /** Returns the key of the cell that contains a given point. Cells are found
+   *  using simple arithmetic so there is no need to generate the grid.
+   *  Returns -1 if the point is outside the grid.
+   *  @param lon Longitude (WGS84)
+   *  @param lat Latitude (WGS84)
+   *  @param shape Shape of the grid cells (e.g SQUARE_SHAPE, HEX_SHAPE,
+   *  DIAMOND_SHAPE)
+   *  @param level Grid level
+   */
+    public long locate(double lon, double lat, int shape, int level) throws Exception {
+        Grid grid = getGrid(shape, level);
+        if (grid==null) return -1;
+        double[] pt = new double[]{lat, lon};
+        WGS84toProj.transform(pt, 0, pt, 0, 1);
+        return grid.locate(pt[0], pt[1]);
+    }
 
 
+  //**************************************************************************
+  //** locate
+  //**************************************************************************
+  /** Used to find cells for multiple points. Points are projected in batches
+   *  which is significantly faster than projecting one point at a time.
+   *  @param lon Longitudes (WGS84)
+   *  @param lat Latitudes (WGS84)
+   *  @param keys Array used to store cell keys. Points outside the grid are
+   *  assigned a key of -1.
+   */
+    public void locate(double[] lon, double[] lat, int shape, int level, long[] keys) throws Exception {
+        Grid grid = getGrid(shape, level);
+        int n = lon.length;
+        if (grid==null){
+            Arrays.fill(keys, 0, n, -1);
+            return;
+        }
 
-              //Update y coordinate as needed
-                if (shape==HEX_SHAPE){
+        int batchSize = 1024;
+        double[] pts = new double[Math.min(n, batchSize)*2];
+        for (int offset=0; offset<n; offset+=batchSize){
+            int len = Math.min(batchSize, n-offset);
+            for (int i=0; i<len; i++){
+                pts[i*2] = lat[offset+i];
+                pts[i*2+1] = lon[offset+i];
+            }
+            WGS84toProj.transform(pts, 0, pts, 0, len);
+            for (int i=0; i<len; i++){
+                keys[offset+i] = grid.locate(pts[i*2], pts[i*2+1]);
+            }
+        }
+    }
 
 
-                  //skip first row
-                    if (y==-gridSize){
-                        y = -(gridSize/2.0);
-                        continue;
-                    }
-                    else{
-                        y -= (gridSize/2.0);
-                    }
+  //**************************************************************************
+  //** cover
+  //**************************************************************************
+  /** Returns the keys of the cells that intersect a geometry, in ascending
+   *  order. See the other cover() method for more information.
+   */
+    public long[] cover(Geometry geom, int shape, int level) throws Exception {
+        return cover(geom, shape, level, false, false);
+    }
 
-                }
 
+  //**************************************************************************
+  //** cover
+  //**************************************************************************
+  /** Returns the keys of the cells that intersect a geometry, in ascending
+   *  order. Unlike createGrid(), no GridCells or geometries are returned.
+   *  The grid is traversed using blocks of column and row indexes that are
+   *  aligned with the coarser levels of the grid. Blocks that are entirely
+   *  inside the geometry are converted to keys without computing any
+   *  coordinates so large covers are fast to compute.
+   *  @param geom Geometry in WGS84 (e.g. a country)
+   *  @param shape Shape of the grid cells (e.g SQUARE_SHAPE, HEX_SHAPE,
+   *  DIAMOND_SHAPE)
+   *  @param level Grid level
+   *  @param contained If true, only returns cells that are entirely inside
+   *  the geometry. Otherwise, returns every cell that intersects the
+   *  geometry.
+   *  @param compact If true, cells are replaced with cells in the coarser
+   *  levels of the grid whenever possible (see compact). Blocks of cells
+   *  that are entirely inside the geometry are returned as a single cell
+   *  so the cells in the given level are never enumerated. Only applies to
+   *  squares.
+   */
+    public long[] cover(Geometry geom, int shape, int level, boolean contained,
+        boolean compact) throws Exception {
+        if (geom==null) throw new IllegalArgumentException("Geometry is required");
+        if (compact && shape!=SQUARE_SHAPE) throw new IllegalArgumentException(
+            "Compaction is only supported for squares");
+        Grid grid = getGrid(shape, level, 1, geom);
+        if (grid==null) return new long[0];
+        long[] keys = getKeys(grid, contained, compact, ForkJoinPool.commonPool());
+        if (compact) return compact(keys);
+        Arrays.sort(keys);
+        return keys;
+    }
 
 
-              //Create cells
-                synchronized(pool){
-                    while (pool.size()>maxPoolSize){
-                        try{
-                            pool.wait();
-                        }
-                        catch(java.lang.InterruptedException e){
-                            break;
-                        }
-                    }
+  //**************************************************************************
+  //** getKeys
+  //**************************************************************************
+  /** Returns the keys of the cells in a grid that intersect (or are inside)
+   *  the spatial filter, in no particular order. Returns every cell in the
+   *  grid if there is no spatial filter. Used by cover() and
+   *  createGridFile(). Keys are collected in blocks that are released as
+   *  they are copied into the array so the peak memory is about 16 bytes
+   *  per key.
+   *  @param pool Used to run the CoverTasks
+   *  @throws IllegalArgumentException if there are too many keys to fit in
+   *  an array
+   */
+    private long[] getKeys(Grid grid, boolean contained, boolean compact, ForkJoinPool pool){
+        Block root = grid.getRoot();
+        if (grid.spatialFilter==null) root.inside = true;
+        ConcurrentLinkedQueue<long[]> results = new ConcurrentLinkedQueue<>();
+        pool.invoke(new CoverTask(grid, root, contained, compact, results));
+
+        long n = 0;
+        for (long[] arr : results) n += arr.length;
+        if (n>Integer.MAX_VALUE-8) throw new IllegalArgumentException(
+            "Too many cells: " + n);
+        long[] keys = new long[(int) n];
+        int offset = 0;
+        long[] arr;
+        while ((arr = results.poll())!=null){
+            System.arraycopy(arr, 0, keys, offset, arr.length);
+            offset += arr.length;
+        }
+        return keys;
+    }
 
 
-                    pool.add(coords);
-                    pool.notify();
-                }
+  //**************************************************************************
+  //** compact
+  //**************************************************************************
+  /** Used to reduce the size of a set of square cells (e.g. a cover) by
+   *  replacing every group of 16 cells that make up a cell one level up with
+   *  the parent cell. Each level subdivides a cell into 4x4 cells so the
+   *  process is repeated until no more groups can be replaced. The result
+   *  covers exactly the same area using a mix of levels. Compaction only
+   *  applies to squares since hexagons and diamonds don't nest.
+   *  @param keys Cell keys. The array is not modified.
+   *  @return Sorted array of unique keys
+   */
+    public long[] compact(long[] keys){
+        long[] arr = unique(keys);
+        for (long key : arr){
+            if (!CellKey.isValid(key) || CellKey.getShape(key)!=SQUARE_SHAPE){
+                throw new IllegalArgumentException("Compaction requires square cells: " + key);
+            }
+        }
 
+        for (int level=MAX_LEVEL; level>1; level--){
 
+          //Find parents of the cells at this level
+            int n = 0;
+            for (long key : arr){
+                if (CellKey.getLevel(key)==level) n++;
             }
-        }
+            if (n<16) continue;
+            long[] parents = new long[n];
+            n = 0;
+            for (long key : arr){
+                if (CellKey.getLevel(key)==level) parents[n++] = getSquareParent(key);
+            }
+            Arrays.sort(parents);
 
 
+          //Find parents with all 16 children
+            int numFull = 0;
+            for (int i=0; i<n; ){
+                int j = i;
+                while (j<n && parents[j]==parents[i]) j++;
+                if (j-i==16) parents[numFull++] = parents[i];
+                i = j;
+            }
+            if (numFull==0) continue;
 
 
-      //Notify the CellGenerator that we are done adding objects to the pool
-        synchronized (pool) {
-            pool.add(null);
-            pool.notify(); //pool.notifyAll();
+          //Replace children with parents
+            long[] compacted = new long[arr.length-numFull*15];
+            int idx = 0;
+            for (long key : arr){
+                if (CellKey.getLevel(key)==level &&
+                    Arrays.binarySearch(parents, 0, numFull, getSquareParent(key))>=0) continue;
+                compacted[idx++] = key;
+            }
+            System.arraycopy(parents, 0, compacted, idx, numFull);
+            arr = unique(compacted);
         }
+        return arr;
+    }
 
 
+  //**************************************************************************
+  //** getSquareParent
+  //**************************************************************************
+  /** Returns the key of the square that contains a given square one level up
+   */
+    private static long getSquareParent(long key){
+        return CellKey.encode(SQUARE_SHAPE, CellKey.getLevel(key)-1,
+        CellKey.getCol(key)>>2, Math.floorDiv(CellKey.getRow(key), 4), 0);
+    }
 
-      //Wait for threads to complete
-        while (true) {
-            try {
-                for (Thread thread : threads){
-                    thread.join();
-                }
-                break;
+
+  //**************************************************************************
+  //** unique
+  //**************************************************************************
+  /** Returns a sorted copy of an array without duplicates
+   */
+    private static long[] unique(long[] keys){
+        long[] arr = keys.clone();
+        Arrays.sort(arr);
+        int n = 0;
+        for (int i=0; i<arr.length; i++){
+            if (i==0 || arr[i]!=arr[i-1]) arr[n++] = arr[i];
+        }
+        return n==arr.length ? arr : Arrays.copyOf(arr, n);
+    }
+
+
+  //**************************************************************************
+  //** getNeighbors
+  //**************************************************************************
+  /** Returns the keys of the cells that share an edge or a vertex with a
+   *  given cell (8 squares, 6 hexagons, or 8 diamonds). Neighbors are found
+   *  using simple arithmetic on the grid lattice so there is no need to
+   *  generate the grid. Cells on either side of the dateline are neighbors.
+   *  Neighbors beyond the top or bottom of the grid are ignored. Returns an
+   *  empty array if the key is invalid.
+   *  @param key A key generated by this class (see CellKey)
+   */
+    public long[] getNeighbors(long key) throws Exception {
+        long[] keys = getKRing(key, 1);
+        int n = 0;
+        for (long k : keys){
+            if (k!=key) keys[n++] = k;
+        }
+        return n==keys.length ? keys : Arrays.copyOf(keys, n);
+    }
+
+
+  //**************************************************************************
+  //** getKRing
+  //**************************************************************************
+  /** Returns the keys of the cells that are within k steps of a given cell,
+   *  including the cell itself. See the other getKRing() method for more
+   *  information.
+   */
+    public long[] getKRing(long key, int k) throws Exception {
+        if (k<0) throw new IllegalArgumentException("Invalid distance: " + k);
+        long[] keys = new long[getKRingSize(CellKey.getShape(key), k)];
+        int n = getKRing(key, k, keys);
+        return n==keys.length ? keys : Arrays.copyOf(keys, n);
+    }
+
+
+  //**************************************************************************
+  //** getKRing
+  //**************************************************************************
+  /** Used to find the cells that are within k steps of a given cell,
+   *  including the cell itself. A step is a move to a neighboring cell (see
+   *  getNeighbors) so a k-ring is a (2k+1)x(2k+1) block of squares or
+   *  diamonds, or a hexagon of hexagons. Keys are computed from the column
+   *  and row indexes of the cell and are written to a caller supplied array
+   *  so that millions of cells can be processed without creating any
+   *  objects.
+   *  @param key A key generated by this class (see CellKey)
+   *  @param k Number of steps. A value of 0 returns the cell itself.
+   *  @param keys Array used to store the cell keys. Must have at least
+   *  getKRingSize() elements.
+   *  @return Number of keys written to the array. Returns 0 if the key is
+   *  invalid.
+   */
+    public int getKRing(long key, int k, long[] keys) throws Exception {
+        if (k<0) throw new IllegalArgumentException("Invalid distance: " + k);
+        Grid grid = getGrid(key);
+        if (grid==null) return 0;
+        return grid.getKRing(CellKey.getCol(key), CellKey.getRow(key), CellKey.getIndex(key), k, keys);
+    }
+
+
+  //**************************************************************************
+  //** getKRingSize
+  //**************************************************************************
+  /** Returns the max number of cells within k steps of a cell. Used to size
+   *  the array passed to getKRing().
+   */
+    public static int getKRingSize(int shape, int k){
+        if (shape==HEX_SHAPE) return 3*k*(k+1)+1;
+        return (2*k+1)*(2*k+1);
+    }
+
+
+  //**************************************************************************
+  //** getParent
+  //**************************************************************************
+  /** Returns the key of the cell one level up that contains the center of a
+   *  given cell. Each level subdivides the grid by a factor of 4 in both
+   *  directions. Squares are nested so the parent of a square is found by
+   *  dividing the column and row indexes by 4. Hexagons and diamonds don't
+   *  nest so the parent is the cell that contains the center of the cell.
+   *  In either case, no cells are generated. Returns -1 if the key is
+   *  invalid or if the cell is in the first level of the grid.
+   *  @param key A key generated by this class (see CellKey)
+   */
+    public long getParent(long key) throws Exception {
+        Grid grid = getGrid(key);
+        if (grid==null || grid.level<2) return -1;
+        Grid parent = getGrid(grid.shape, grid.level-1);
+        if (parent==null) return -1;
+        return grid.getParent(CellKey.getCol(key), CellKey.getRow(key), CellKey.getIndex(key), parent);
+    }
+
+
+  //**************************************************************************
+  //** getChildren
+  //**************************************************************************
+  /** Returns the keys of the cells one level down whose parent is a given
+   *  cell (see getParent). A square has 16 children. Hexagons and diamonds
+   *  have roughly 16 children, some of which extend beyond the edges of the
+   *  parent. Returns an empty array if the key is invalid or if the cell is
+   *  in the last level of the grid.
+   *  @param key A key generated by this class (see CellKey)
+   */
+    public long[] getChildren(long key) throws Exception {
+        Grid grid = getGrid(key);
+        if (grid==null || grid.level>=MAX_LEVEL) return new long[0];
+        Grid child = getGrid(grid.shape, grid.level+1);
+        if (child==null) return new long[0];
+        return child.getChildren(CellKey.getCol(key), CellKey.getRow(key), CellKey.getIndex(key), grid);
+    }
+
+
+  //**************************************************************************
+  //** getGrid
+  //**************************************************************************
+  /** Returns the grid associated with a given cell key. Returns null if the
+   *  key is invalid or if the cell is not in the grid.
+   */
+    private Grid getGrid(long key) throws Exception {
+        if (!CellKey.isValid(key)) return null;
+        Grid grid = getGrid(CellKey.getShape(key), CellKey.getLevel(key));
+        if (grid==null) return null;
+
+        int col = CellKey.getCol(key);
+        int row = CellKey.getRow(key);
+        int index = CellKey.getIndex(key);
+        if (col<grid.minCol || col>grid.maxCol || row<grid.minRow || row>grid.maxRow) return null;
+        if (index>=grid.templates.length) return null;
+        if (grid.isWrapped(col, grid.templates[index])) return null;
+        return grid;
+    }
+
+
+  //**************************************************************************
+  //** getGrid
+  //**************************************************************************
+  /** Returns the parameters of a grid for a given shape and level without a
+   *  spatial filter. Grids are cached so that cells can be looked up by key
+   *  without recomputing the extents of the grid.
+   */
+    private Grid getGrid(int shape, int level) throws Exception {
+        if (shape<1 || shape>3 || level<1 || level>MAX_LEVEL) return null;
+        int id = shape*16+level;
+        Grid grid = grids.get(id);
+        if (grid==null){
+            grid = getGrid(shape, level, 1, (Envelope) null);
+            if (grid==null) return null;
+            if (!grids.compareAndSet(id, null, grid)) grid = grids.get(id);
+        }
+        return grid;
+    }
+
+
+  //**************************************************************************
+  //** getGrid
+  //**************************************************************************
+  /** Returns the parameters of a grid for a given shape, level, and spatial
+   *  filter. Returns null if there are no cells in the grid.
+   */
+    private Grid getGrid(int shape, int level, double density,
+        Geometry spatialFilter) throws Exception {
+        if (spatialFilter==null) return getGrid(shape, level, density, (Envelope) null);
+        Grid grid = getGrid(shape, level, density, spatialFilter.getEnvelopeInternal());
+        if (grid!=null) grid.spatialFilter = new SpatialFilter(spatialFilter);
+        return grid;
+    }
+
+
+  //**************************************************************************
+  //** getGrid
+  //**************************************************************************
+  /** Returns the parameters of a grid for a given shape and level, clipped
+   *  to a bounding box. The grid is returned without a spatial filter.
+   *  Returns null if there are no cells in the grid.
+   *  @param envelope Bounding box in WGS84. Optional.
+   *  @throws IllegalArgumentException if the level is invalid
+   */
+    private Grid getGrid(int shape, int level, double density,
+        Envelope envelope) throws Exception {
+        if (level<1 || level>MAX_LEVEL) throw new IllegalArgumentException(
+            "Invalid level: " + level + " (expected 1-" + MAX_LEVEL + ")");
+
+     //Bounding box in WGS84. Coordinates must be specified in the
+     //following order: left,bottom,right,top.
+        Double[] bbox = null;
+        if (envelope!=null){
+            double west = envelope.getMinX();
+            double south = envelope.getMinY();
+            double east = envelope.getMaxX();
+            double north = envelope.getMaxY();
+            bbox = new Double[]{west, south, east, north};
+        }
+
+
+
+      //Compute cell multiplier. Each level subdivides the columns in the
+      //previous level by a factor of 4 (e.g. 1, 4, 16, ... 4^11)
+        int multiplier = 1<<(2*(level-1));
+
+
+
+      //Compute left and right bounds and compute grid size
+        GeometryFactory geometryFactory = new GeometryFactory();
+        Point left = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(0,-180,0)), WGS84toProj);
+        Point right = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(0,180,0)), WGS84toProj);
+        double gridSize = (right.getX()*2)/(double)(48*multiplier);
+        gridSize = (right.getX()*2)/(double)(30*multiplier);
+
+
+
+      //Compute offset as needed
+        double leftOffset = 0.0;
+        if ((shape==DIAMOND_SHAPE) && level>1) leftOffset = gridSize/2d;
+
+
+
+      //Compute top and bottom bounds
+        Point top = null;
+        Point bottom = null;
+        try{
+            top = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(90,0,0)), WGS84toProj);
+            bottom = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(-90,0,0)), WGS84toProj);
+        }
+        catch(Exception e){
+
+          //The projected coordinate system probably doesn't extend all the way
+          //to the poles so we'll have to get the max extent of the projection
+            org.geotools.metadata.iso.extent.GeographicBoundingBoxImpl box =
+                (org.geotools.metadata.iso.extent.GeographicBoundingBoxImpl)
+                proj.getDomainOfValidity().getGeographicElements().iterator().next();
+
+
+          //Get the north bounding latitude
+            double northBoundLatitude = box.getNorthBoundLatitude();
+
+
+          //Calculate max y by finding the first multiple of the gridSize
+          //that is north of the northBoundLatitude. Uses a binary search on
+          //the row index so the number of transforms doesn't grow with the
+          //number of rows in the grid.
+            long lo = 0, hi = 1;
+            while (!isNorthOf(hi*gridSize, northBoundLatitude, geometryFactory)){
+                lo = hi;
+                hi *= 2;
             }
-            catch (InterruptedException e) {
-                e.printStackTrace();
+            while (hi-lo>1){
+                long mid = (lo+hi)/2;
+                if (isNorthOf(mid*gridSize, northBoundLatitude, geometryFactory)) hi = mid;
+                else lo = mid;
+            }
+            double y = hi*gridSize;
+            if (level<10){
+
+              //Levels 1-9 were originally computed by adding the gridSize
+              //to itself one row at a time. Use the same value so that the
+              //rows near the poles don't change in existing grids.
+                y = 0;
+                for (long i=0; i<hi; i++) y += gridSize;
+            }
+            double lat = getLatitude(y, geometryFactory);
+            if (lat>northBoundLatitude){
+                top = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(lat,0,0)), WGS84toProj);
+                bottom = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(-lat,0,0)), WGS84toProj);
             }
         }
 
-        threads.clear();
+        if (top==null || bottom==null) throw new IllegalArgumentException();
+
 
-        callback.done();
+
+      //Compute column and row ranges. The grid is a lattice of bounding boxes
+      //in projected space. Each box is identified by a column and row index.
+        double x0 = left.getX()-leftOffset;
+        double rowHeight = shape==HEX_SHAPE ? gridSize*1.5 : gridSize;
+        int minCol = 0;
+        int maxCol = 30*multiplier - (leftOffset>0 ? 0 : 1);
+        int minRow = (int) Math.floor((bottom.getY()-gridSize)/rowHeight)+1;
+        int maxRow = (int) Math.floor(top.getY()/rowHeight);
+
+
+
+      //Clip the column and row ranges to the bbox. Note that the cells to the
+      //right and below a bounding box (hex and diamonds) extend beyond the box.
+      //The ranges are padded slightly so that cells that touch the edge of
+      //the bbox are tested against the spatial filter.
+        if (bbox!=null){
+            double e = 1e-9;
+            bbox = transFormBBox(bbox);
+            double dx = 0, dy = 0;
+            if (shape==HEX_SHAPE){
+                dx = gridSize/2.0;
+                dy = gridSize*0.75;
+            }
+            else if (shape==DIAMOND_SHAPE){
+                dx = gridSize/2.0;
+                dy = gridSize/2.0;
+            }
+            minCol = Math.max(minCol, (int) Math.ceil((bbox[0]-gridSize-dx-x0)/gridSize-e));
+            maxCol = Math.min(maxCol, (int) Math.floor((bbox[2]-x0)/gridSize+e));
+            minRow = Math.max(minRow, (int) Math.ceil((bbox[1]-gridSize)/rowHeight-e));
+            maxRow = Math.min(maxRow, (int) Math.floor((bbox[3]+dy)/rowHeight+e));
+        }
+
+
+
+      //Create grid
+        if (minCol>maxCol || minRow>maxRow) return null;
+        CylindricalTransform cylinder = CylindricalTransform.create(ProjToWGS84, right.getX(), top.getY());
+        Grid grid = new Grid(shape, level, multiplier, density, null, x0, leftOffset,
+            gridSize, rowHeight, minCol, maxCol, minRow, maxRow, cylinder);
+        grid.datelineMode = datelineMode;
+        return grid;
     }
 
 
 
   //**************************************************************************
-  //** CellGenerator
+  //** isNorthOf
   //**************************************************************************
-  /** Thread used to generate cells
+  /** Returns true if a y coordinate is north of a given latitude or if the
+   *  y coordinate can't be projected
    */
-    private class CellGenerator implements Runnable {
+    private boolean isNorthOf(double y, double lat, GeometryFactory geometryFactory){
+        double d = getLatitude(y, geometryFactory);
+        return Double.isNaN(d) || d>lat;
+    }
+
+
+  //**************************************************************************
+  //** getLatitude
+  //**************************************************************************
+  /** Returns the latitude of a y coordinate along the central meridian.
+   *  Returns NaN if the y coordinate can't be projected.
+   */
+    private double getLatitude(double y, GeometryFactory geometryFactory){
+        try{
+            Point p = (Point) JTS.transform( geometryFactory.createPoint(new Coordinate(0,y,0)), ProjToWGS84);
+            return p.getX(); //Yeah, getX is a little wierd...
+        }
+        catch(Exception e){
+            return Double.NaN;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Grid
+  //**************************************************************************
+  /** Used to encapsulate the parameters of a grid generated via createGrid()
+   */
+    private static class Grid {
+        private static final int OUTSIDE = 0;
+        private static final int INSIDE = 1;
+        private static final int PARTIAL = 2;
 
-        private int proj;
         private int shape;
         private int level;
-        private double density;
-        private List pool;
-        private CallBack callback;
-        private Geometry spatialFilter;
+        private int multiplier;
+        private SpatialFilter spatialFilter;
+        private double x0;
+        private double leftOffset;
+        private double gridSize;
+        private double rowHeight;
+        private int minCol, maxCol, minRow, maxRow;
+        private CellTemplate[] templates;
+        private CylindricalTransform cylinder;
+        private AtomicReferenceArray<Latitudes> latitudes; //recently used rows
+        private double[][] lonOffsets; //longitude of each vertex relative to the box
+        private double degreesPerCol; //width of a column in degrees
         private GeometryFactory geometryFactory = new GeometryFactory();
-        private LineString leftBorder = geometryFactory.createLineString(new Coordinate[]{
-            new Coordinate(-180.005,90,0),
-            new Coordinate(-180.005,-90,0)
-        });
-
-        public CellGenerator(int shape, int level, double density, Geometry spatialFilter, int proj, List pool, CallBack callback){
-            this.proj = proj;
+        private CellCallBack callback;
+        private GridMetrics metrics;
+        private Grid parent; //grid one level up (multi-level grids)
+        private AtomicLong errors = new AtomicLong(); //cells the callback failed to add
+        private int datelineMode = EXTEND_DATELINE;
+        private double leftEdge; //left edge of the grid (-180) in grid units
+        private double rightEdge; //right edge of the grid (180) in grid units
+
+        public Grid(int shape, int level, int multiplier, double density,
+            SpatialFilter spatialFilter, double x0, double leftOffset, double gridSize,
+            double rowHeight, int minCol, int maxCol, int minRow, int maxRow,
+            CylindricalTransform cylinder){
             this.shape = shape;
             this.level = level;
-            this.density = density;
+            this.multiplier = multiplier;
             this.spatialFilter = spatialFilter;
-            this.callback = callback;
-            this.pool = pool;
+            this.x0 = x0;
+            this.leftOffset = leftOffset;
+            this.gridSize = gridSize;
+            this.rowHeight = rowHeight;
+            this.minCol = minCol;
+            this.maxCol = maxCol;
+            this.minRow = minRow;
+            this.maxRow = maxRow;
+            this.templates = CellTemplate.getTemplates(shape, density);
+            this.cylinder = cylinder;
+            this.leftEdge = leftOffset/gridSize;
+            this.rightEdge = leftEdge+30*multiplier;
+            this.degreesPerCol = 360.0/(30*multiplier);
+            if (cylinder!=null){
+                latitudes = new AtomicReferenceArray<>((int) Math.min(maxRow-minRow+1L, LATITUDE_CACHE_SIZE));
+                lonOffsets = new double[templates.length][];
+                for (CellTemplate template : templates){
+                    double[] offsets = new double[template.size()];
+                    for (int i=0; i<offsets.length; i++){
+                        offsets[i] = template.x[i]*degreesPerCol;
+                    }
+                    lonOffsets[template.index] = offsets;
+                }
+            }
         }
 
-        public void run() {
+      /** Returns the max number of vertices in a cell, including the closing
+       *  vertices. Cells that are split at the dateline have up to 5 more
+       *  vertices than the template (an intersection on both sides of each
+       *  crossing and a second closing vertex).
+       */
+        public int getMaxPoints(){
+            return getMaxPoints(datelineMode);
+        }
 
-            while (true) {
+        public int getMaxPoints(int datelineMode){
+            int maxPoints = 0;
+            for (CellTemplate template : templates) maxPoints = Math.max(maxPoints, template.size());
+            return datelineMode==SPLIT_DATELINE ? maxPoints+5 : maxPoints;
+        }
 
-                Object obj = null;
-                synchronized (pool) {
-                    while (pool.isEmpty()) {
-                        try {
-                          pool.wait();
-                        }
-                        catch (InterruptedException e) {
-                          return;
-                        }
+      /** Returns the longitude for a position in the grid, in column units
+       *  (e.g. the left side of a column), for cylindrical projections. The
+       *  grid spans exactly 360 degrees so longitudes are computed in column
+       *  units. As a result, vertices on the edges of the columns have exact
+       *  values (e.g. -30 instead of -30.000000000000004) and are identical
+       *  in adjacent cells.
+       */
+        public double getLongitude(double col){
+            return (col-leftEdge)*degreesPerCol-180;
+        }
+
+      /** Returns true if a cell is generated on the other side of the grid.
+       *  The grid wraps around at the dateline so cells that straddle the
+       *  left edge (e.g. the first column of diamonds) are generated by the
+       *  last column, and cells in the last column that are entirely beyond
+       *  the right edge are duplicates of cells in the first column.
+       */
+        public boolean isWrapped(int col, CellTemplate template){
+            double minX = col+template.minX;
+            if (minX>=rightEdge) return true;
+            return minX<leftEdge && col+template.maxX>leftEdge;
+        }
+
+      /** Returns true if a cell crosses the right edge of the grid (dateline)
+       */
+        public boolean crossesDateline(int col, CellTemplate template){
+            return col+template.minX<rightEdge && col+template.maxX>rightEdge;
+        }
+
+      /** Returns true if a cell touches or crosses the left or right edge of
+       *  the grid
+       */
+        public boolean isEdge(int col, CellTemplate template){
+            return col+template.minX<=leftEdge || col+template.maxX>=rightEdge;
+        }
+
+      /** Returns a block that covers every bounding box in the grid
+       */
+        public Block getRoot(){
+            return new Block(minCol, maxCol, minRow, maxRow, multiplier*4, false);
+        }
+
+      /** Returns the number of columns in a band. Bands are aligned with the
+       *  cells one level down from the top of the grid (level 2).
+       */
+        public int getBandSize(){
+            return Math.max(1, multiplier/4);
+        }
+
+      /** Returns blocks of columns used to generate the grid in stages (see
+       *  GridCheckpoint) and to split the grid into shards. Each band spans
+       *  all the rows in the grid.
+       */
+        public ArrayList<Block> getBands(){
+            int size = getBandSize();
+            ArrayList<Block> bands = new ArrayList<>();
+            for (int c=Math.floorDiv(minCol, size)*size; c<=maxCol; c+=size){
+                bands.add(new Block(Math.max(c, minCol), Math.min(c+size-1, maxCol),
+                minRow, maxRow, size, false));
+            }
+            return bands;
+        }
+
+      /** Returns latitudes for every distinct y coordinate found in a row of
+       *  cells. The latitudes are computed the first time a row is requested
+       *  and are shared by all the threads. Rows are cached in a fixed size
+       *  table (indexed by row) so that memory usage doesn't grow with the
+       *  number of rows in the grid. Returns null if the projection is not
+       *  cylindrical and an empty array if the row can't be projected.
+       */
+        public double[] getLatitudes(int row){
+            if (cylinder==null) return null;
+            int idx = Math.floorMod(row, latitudes.length());
+            Latitudes entry = latitudes.get(idx);
+            double[] lats = entry!=null && entry.row==row ? entry.lats : null;
+            if (lats==null){
+                double y = row*rowHeight;
+                CellTemplate last = templates[templates.length-1];
+                lats = new double[last.latOffset+last.yValues.length];
+                for (CellTemplate template : templates){
+                    for (int i=0; i<template.yValues.length; i++){
+                        lats[template.latOffset+i] = y+template.yValues[i]*gridSize;
                     }
-                    obj = pool.get(0);
-                    if (obj!=null) pool.remove(0);
-                    pool.notifyAll();
                 }
+                long t = metrics==null ? 0 : System.nanoTime();
+                try{
+                    cylinder.getLatitudes(lats);
+                }
+                catch(Exception e){
+                    lats = new double[0];
+                }
+                if (metrics!=null) metrics.transformTime.add(System.nanoTime()-t);
+                latitudes.set(idx, new Latitudes(row, lats));
+            }
+            return lats;
+        }
 
-                if (obj!=null){
-                    Coordinate[] coords = (Coordinate[]) obj;
+      /** Returns the key of the cell that contains a given point in projected
+       *  coordinates. Returns -1 if the point is outside the grid. Points are
+       *  assigned to cells using simple arithmetic on the grid lattice. Points
+       *  that fall on the edge between two cells are assigned to one of them.
+       */
+        public long locate(double x, double y){
+            if (Double.isNaN(x) || Double.isNaN(y)) return -1;
 
 
+          //Wrap x coordinates at the dateline
+            int numCols = 30*multiplier;
+            double left = x0+leftOffset;
+            double width = numCols*gridSize;
+            if (x<left) x += width;
+            else if (x>=left+width) x -= width;
 
-                    ArrayList<Polygon> cells = new ArrayList<>();
 
-                    Polygon cell = getCell(shape, coords, density, geometryFactory, ProjToWGS84);
-                    cells.add(cell);
+          //Compute position relative to the origin of the grid in units of
+          //the grid size
+            double u = (x-x0)/gridSize;
+            double v = y/gridSize;
+            long col, row;
+            int index = 0;
 
+            if (shape==DIAMOND_SHAPE){
 
-                  //Create new cell to the right and slightly lower than the current cell
-                    if (shape==DIAMOND_SHAPE || shape==HEX_SHAPE){
-                        Coordinate[] coords2 = shiftCoords(coords, shape, geometryFactory);
-                        Polygon cell2 = getCell(shape, coords2, density, geometryFactory, ProjToWGS84);
-                        cells.add(cell2);
+              //Diamonds are squares in a coordinate system rotated by 45
+              //degrees. The centers of the diamonds are found at integer
+              //values of p=u+v and q=u-v.
+                long p = (long) Math.floor(u+v+0.5);
+                long q = (long) Math.floor(u-v+0.5);
+                if (((p+q)&1)!=0){
+                    col = (p+q-1)>>1;
+                }
+                else{
+                    col = ((p+q)>>1)-1;
+                    index = 1;
+                }
+                row = p-1-col;
+            }
+            else if (shape==HEX_SHAPE){
+
+              //Hexagon centers are arranged in layers, 0.75 units apart.
+              //Even layers are associated with the first cell in a bounding
+              //box and odd layers with the second. Find the closest center in
+              //the two layers that bracket the point.
+                long k = (long) Math.floor((v-0.5)/0.75);
+                double best = Double.MAX_VALUE;
+                long bestCol = 0, bestLayer = 0;
+                for (long layer=k; layer<=k+1; layer++){
+                    long c;
+                    double cx;
+                    if ((layer&1)==0){
+                        c = (long) Math.floor(u);
+                        cx = c+0.5;
                     }
+                    else{
+                        c = (long) Math.floor(u+0.5)-1;
+                        cx = c+1;
+                    }
+                    double d = Math.abs(v-(0.75*layer+0.5))+0.5*Math.abs(u-cx);
+                    if (d<best){
+                        best = d;
+                        bestCol = c;
+                        bestLayer = layer;
+                    }
+                }
+                col = bestCol;
+                if ((bestLayer&1)==0){
+                    row = bestLayer>>1;
+                }
+                else{
+                    row = (bestLayer+1)>>1;
+                    index = 1;
+                }
+            }
+            else{
+                col = (long) Math.floor(u);
+                row = (long) Math.floor(v);
+            }
 
 
+          //Cells that cross the left border are generated on the right side
+          //of the grid
+            if (col<0) col += numCols;
+            else if (x0+(col+templates[index].dx)*gridSize<left-gridSize*1e-9) col += numCols;
+            else if (col>maxCol) col -= numCols;
 
-                    for (Polygon polygon : cells){
-                        if (polygon==null) continue;
-                        if (spatialFilter!=null){
-                            if (!polygon.intersects(spatialFilter)) continue;
-                        }
+            if (col<minCol || col>maxCol || row<minRow || row>maxRow) return -1;
+            return CellKey.encode(shape, level, (int) col, (int) row, index);
+        }
 
-                        try{
+      /** Used to find the cells within k steps of a given cell. Squares are
+       *  found by offsetting the column and row indexes. Diamonds are
+       *  squares in a coordinate system rotated by 45 degrees (see locate).
+       *  Hexagons are arranged in layers, 0.75 units apart, with every other
+       *  layer shifted by half a cell. Hexagons are found using "doubled"
+       *  coordinates where x is measured in half cells so that the neighbors
+       *  of a hexagon are 2 units to the left and right in the same layer
+       *  and 1 unit to the left and right in the layers above and below.
+       *  Returns the number of keys written to the array.
+       */
+        public int getKRing(int col, int row, int index, int k, long[] keys){
+            int n = 0;
+            if (shape==DIAMOND_SHAPE){
+                int p = col+row+1;
+                int q = col-row+index;
+                for (int i=p-k; i<=p+k; i++){
+                    for (int j=q-k; j<=q+k; j++){
+                        int c, idx;
+                        if (((i+j)&1)!=0){
+                            c = (i+j-1)>>1;
+                            idx = 0;
+                        }
+                        else{
+                            c = ((i+j)>>1)-1;
+                            idx = 1;
+                        }
+                        n = addKey(c, i-1-c, idx, keys, n);
+                    }
+                }
+            }
+            else if (shape==HEX_SHAPE){
+                int layer = 2*row-index;
+                int x = 2*col+1+index;
+                for (int i=-k; i<=k; i++){
+                    int l = layer+i;
+                    int w = 2*k-Math.abs(i);
+                    for (int j=x-w; j<=x+w; j+=2){
+                        if ((l&1)==0) n = addKey((j-1)>>1, l>>1, 0, keys, n);
+                        else n = addKey((j-2)>>1, (l+1)>>1, 1, keys, n);
+                    }
+                }
+            }
+            else{
+                for (int r=row-k; r<=row+k; r++){
+                    for (int c=col-k; c<=col+k; c++){
+                        n = addKey(c, r, 0, keys, n);
+                    }
+                }
+            }
 
-                          //Check left border
-                            if (polygon.crosses(leftBorder)){
-                                console.log("Skipping border cell...");
-                                continue;
-                            }
 
+          //Remove duplicates in low level grids where the cells wrap around
+          //the entire grid
+            if (2*k+2>=30*multiplier && n>1){
+                Arrays.sort(keys, 0, n);
+                int m = 1;
+                for (int i=1; i<n; i++){
+                    if (keys[i]!=keys[m-1]) keys[m++] = keys[i];
+                }
+                n = m;
+            }
+            return n;
+        }
 
-                            GridCell gridCell = new GridCell();
-                            gridCell.setShape(shape);
-                            gridCell.setLevel(level);
-                            gridCell.setProj(proj);
-                            gridCell.setGeom(polygon);
-                            Coordinate centroid = polygon.getCentroid().getCoordinate();
-                            int hashCode = Objects.hash(shape, level, proj, centroid.x, centroid.y);
-                            gridCell.setHash(hashCode);
+      /** Returns the key of the cell in a given parent grid (one level up)
+       *  that contains the center of a cell. Returns -1 if the center is
+       *  outside the parent grid.
+       */
+        public long getParent(int col, int row, int index, Grid parent){
+            if (shape==SQUARE_SHAPE){
+                return CellKey.encode(shape, level-1, col>>2, Math.floorDiv(row, 4), 0);
+            }
+            CellTemplate template = templates[index];
+            double x = x0+(col+template.dx+0.5)*gridSize;
+            double y = row*rowHeight+(template.dy+0.5)*gridSize;
+            long key = parent.locate(x, y);
+
+
+          //The center of a cell near the poles may fall outside the cells in
+          //the parent grid. Use the closest parent towards the equator.
+            for (int i=0; i<4; i++){
+                if (key!=-1 && parent.hasCell(CellKey.getRow(key), CellKey.getIndex(key))) break;
+                y -= Math.signum(y)*parent.gridSize/2;
+                key = parent.locate(x, y);
+            }
+            return key;
+        }
 
-                            callback.add(gridCell);
-                        }
-                        catch(Exception e){
-                            console.log(leftBorder);
-                            console.log(polygon);
-                            e.printStackTrace();
-                            //console.log(e.getMessage());
+      /** Returns the keys of the cells whose parent is a given cell in the
+       *  grid one level up. The children of a square are found by
+       *  multiplying the column and row indexes by 4. Hexagons and diamonds
+       *  are found by testing the cells around the center of the parent.
+       */
+        public long[] getChildren(int col, int row, int index, Grid parent){
+            long[] keys;
+            int n = 0;
+            if (shape==SQUARE_SHAPE){
+                keys = new long[16];
+                for (int r=row*4; r<row*4+4; r++){
+                    for (int c=col*4; c<col*4+4; c++){
+                        n = addKey(c, r, 0, keys, n);
+                    }
+                }
+            }
+            else{
+                CellTemplate template = parent.templates[index];
+                double x = parent.x0+(col+template.dx+0.5)*parent.gridSize;
+                double y = row*parent.rowHeight+(template.dy+0.5)*parent.gridSize;
+                int c0 = (int) Math.floor((x-x0)/gridSize);
+                int r0 = (int) Math.floor(y/rowHeight);
+                long key = CellKey.encode(shape, parent.level, col, row, index);
+                keys = new long[81*templates.length];
+                for (int r=r0-4; r<=r0+4; r++){
+                    for (int c=c0-4; c<=c0+4; c++){
+                        for (int i=0; i<templates.length; i++){
+                            int m = addKey(c, r, i, keys, n);
+                            if (m>n && getParent(CellKey.getCol(keys[n]), r, i, parent)==key) n = m;
                         }
                     }
                 }
-                else{
-                    return;
+            }
+            Arrays.sort(keys, 0, n);
+            return Arrays.copyOf(keys, n);
+        }
+
+      /** Used to add a key to an array. Columns are wrapped at the dateline
+       *  and cells beyond the top or bottom of the grid are ignored. Returns
+       *  the number of keys in the array.
+       */
+        private int addKey(int col, int row, int index, long[] keys, int n){
+            if (!hasCell(row, index)) return n;
+            int numCols = 30*multiplier;
+            col = Math.floorMod(col, numCols);
+            if (isWrapped(col, templates[index])) col += numCols;
+            if (col<minCol || col>maxCol) return n;
+            keys[n] = CellKey.encode(shape, level, col, row, index);
+            return n+1;
+        }
+
+      /** Returns false if cells with a given index are not generated in a
+       *  given row (e.g. the row is outside the grid or the cells are
+       *  entirely beyond the poles)
+       */
+        private boolean hasCell(int row, int index){
+            if (row<minRow || row>maxRow) return false;
+            if (row==minRow || row==maxRow){
+
+              //Skip cells that are entirely beyond the poles (see getCell)
+                double[] lats = getLatitudes(row);
+                if (lats!=null){
+                    if (lats.length==0) return false;
+                    CellTemplate template = templates[index];
+                    int idx = template.latOffset;
+                    if (lats[idx]==lats[idx+template.yValues.length-1]) return false;
                 }
             }
+            return true;
+        }
+
+      /** Returns true if blocks of cells can be tested against the spatial
+       *  filter. Requires a cylindrical projection.
+       */
+        public boolean canPrune(){
+            return spatialFilter!=null && cylinder!=null;
+        }
+
+      /** Used to test a block against the spatial filter. Returns OUTSIDE if
+       *  none of the cells in the block intersect the filter, INSIDE if all
+       *  the cells are inside the filter, and PARTIAL otherwise.
+       */
+        public int test(Block block){
+            Polygon extent = getExtent(block.minCol, block.maxCol, block.minRow, block.maxRow);
+            if (extent==null) return PARTIAL;
+            if (!spatialFilter.intersects(extent)) return OUTSIDE;
+            return spatialFilter.contains(extent) ? INSIDE : PARTIAL;
+        }
+
+      /** Returns a rectangle in WGS84 that contains every cell associated
+       *  with a given range of bounding boxes. Returns null if the rectangle
+       *  can't be computed.
+       */
+        public Polygon getExtent(int minCol, int maxCol, int minRow, int maxRow){
+            double minDx = 0, maxDx = 0, minDy = 0;
+            for (CellTemplate template : templates){
+                minDx = Math.min(minDx, template.dx);
+                maxDx = Math.max(maxDx, template.dx);
+                minDy = Math.min(minDy, template.dy);
+            }
+            try{
+                double west = getLongitude(minCol+minDx);
+                double east = getLongitude(maxCol+1+maxDx);
+                double south = cylinder.getLatitude(minRow*rowHeight+minDy*gridSize);
+                double north = cylinder.getLatitude(maxRow*rowHeight+gridSize);
+                return geometryFactory.createPolygon(new Coordinate[]{
+                    new Coordinate(west, north), new Coordinate(west, south),
+                    new Coordinate(east, south), new Coordinate(east, north),
+                    new Coordinate(west, north)
+                });
+            }
+            catch(Exception e){
+                return null;
+            }
         }
     }
 
 
 
   //**************************************************************************
-  //** getCell
+  //** Latitudes
   //**************************************************************************
-  /** Used to generate grid cells (hexes, squares, diamonds, etc).
-   *
-   *  @param coords Bounding box of the grid cell. Assumes coordinates are in
-   *  counter clockwise order starting with the upper left coordinate.
-   *
-   *  @param density Used to calculate the vertex spacing. A value of 1 implies
-   *  no densification. For applications that require high precision or for
-   *  rendering in GIS applications, use higher numbers.
+  /** Used to cache the latitudes of a row in the grid
+   */
+    private static class Latitudes {
+        private final int row;
+        private final double[] lats;
+
+        public Latitudes(int row, double[] lats){
+            this.row = row;
+            this.lats = lats;
+        }
+    }
+
+
+
+  //**************************************************************************
+  //** Block
+  //**************************************************************************
+  /** Used to represent a rectangular range of columns and rows in the grid.
+   *  When a spatial filter is used, blocks are aligned with cells in the
+   *  coarser levels of the grid. Each level subdivides a cell into 4x4 cells
+   *  so a block with a blockSize of 4^n columns and rows covers exactly one
+   *  cell n levels up.
    */
-    private static Polygon getCell(int shape, Coordinate[] coords, double density,
-        GeometryFactory geometryFactory, MathTransform projToWGS84){
+    private static class Block {
+        private int minCol, maxCol, minRow, maxRow;
+        private int blockSize;
+        private boolean inside;
+
+      /** @param blockSize Number of columns and rows in an aligned block
+       *  @param inside If true, the block is entirely inside the spatial filter
+       */
+        public Block(int minCol, int maxCol, int minRow, int maxRow,
+            int blockSize, boolean inside){
+            this.minCol = minCol;
+            this.maxCol = maxCol;
+            this.minRow = minRow;
+            this.maxRow = maxRow;
+            this.blockSize = blockSize;
+            this.inside = inside;
+        }
 
-        Polygon polygon = (Polygon) geometryFactory.createPolygon(coords);
+        public long size(){
+            return (long) (maxCol-minCol+1)*(maxRow-minRow+1);
+        }
 
-        if (shape!=SQUARE_SHAPE){
+      /** Used to test the block against the spatial filter. Returns false if
+       *  the block can be skipped. Otherwise, updates the "inside" flag and
+       *  returns true.
+       */
+        public boolean test(Grid grid){
+            if (inside || !grid.canPrune() || blockSize<=1) return true;
+            GridMetrics metrics = grid.metrics;
+            long t = metrics==null ? 0 : System.nanoTime();
+            int result = grid.test(this);
+            if (metrics!=null){
+                metrics.enumerateTime.add(System.nanoTime()-t);
+                if (result==Grid.OUTSIDE) metrics.boxes.add(size());
+            }
+            if (result==Grid.OUTSIDE) return false;
+            inside = result==Grid.INSIDE;
+            return true;
+        }
 
-            Coordinate ul = coords[0];
-            Coordinate ur = coords[3];
+      /** Returns true if the block should be split into aligned blocks, one
+       *  level down, before generating cells
+       */
+        public boolean canSubdivide(Grid grid){
+            return !inside && grid.canPrune() && blockSize>4;
+        }
 
-            Coordinate ll = coords[1];
-            Coordinate lr = coords[2];
+      /** Used to split the block into aligned blocks, one level down
+       */
+        public ArrayList<Block> subdivide(){
+            int size = blockSize/4;
+            ArrayList<Block> blocks = new ArrayList<>();
+            for (int r=Math.floorDiv(minRow, size)*size; r<=maxRow; r+=size){
+                for (int c=Math.floorDiv(minCol, size)*size; c<=maxCol; c+=size){
+                    blocks.add(new Block(
+                        Math.max(c, minCol), Math.min(c+size-1, maxCol),
+                        Math.max(r, minRow), Math.min(r+size-1, maxRow),
+                        size, false
+                    ));
+                }
+            }
+            return blocks;
+        }
+    }
 
-            double cellHeight = ul.getOrdinate(Coordinate.Y)-ll.getOrdinate(Coordinate.Y);
-            double cellWidth = ul.getOrdinate(Coordinate.X)-ur.getOrdinate(Coordinate.X);
 
-            double top = ul.getOrdinate(Coordinate.Y);
-            double bottom = ll.getOrdinate(Coordinate.Y);
-            double left = ul.getOrdinate(Coordinate.X);
-            double right = ur.getOrdinate(Coordinate.X);
 
-            Coordinate center = polygon.getCentroid().getCoordinate();
+  //**************************************************************************
+  //** GridTask
+  //**************************************************************************
+  /** Used to generate cells for a block. Blocks that fall outside the spatial
+   *  filter are skipped. Blocks that fall entirely inside the filter are
+   *  generated without testing individual cells. Other blocks are subdivided
+   *  until the blocks are 4x4 or smaller. Large blocks are processed in
+   *  parallel. Idle threads steal blocks from busy ones so there is no shared
+   *  queue.
+   */
+    private class GridTask extends RecursiveAction {
 
-            if (shape==DIAMOND_SHAPE){
+        private static final long serialVersionUID = 1L;
+        private Grid grid;
+        private Block block;
 
-                coords = new Coordinate[]{
-                    new Coordinate(center.getOrdinate(Coordinate.X), top),
-                    new Coordinate(left, center.getOrdinate(Coordinate.Y)),
-                    new Coordinate(center.getOrdinate(Coordinate.X), bottom),
-                    new Coordinate(right, center.getOrdinate(Coordinate.Y)),
-                    new Coordinate(center.getOrdinate(Coordinate.X), top)
-                };
+        public GridTask(Grid grid, Block block){
+            this.grid = grid;
+            this.block = block;
+        }
 
-                polygon = (Polygon) geometryFactory.createPolygon(coords);
+        protected void compute(){
 
+          //Test the block against the spatial filter
+            if (!block.test(grid)) return;
+            if (block.canSubdivide(grid)){
+                ArrayList<GridTask> tasks = new ArrayList<>();
+                for (Block b : block.subdivide()) tasks.add(new GridTask(grid, b));
+                if (block.size()>tileSize){
+                    invokeAll(tasks);
+                }
+                else{
+                    for (GridTask task : tasks) task.compute();
+                }
+                return;
             }
 
 
-            else if (shape==HEX_SHAPE) {
+          //Generate cells, splitting large blocks in half along the longest side
+            int minCol = block.minCol;
+            int maxCol = block.maxCol;
+            int minRow = block.minRow;
+            int maxRow = block.maxRow;
+            int numCols = maxCol-minCol+1;
+            int numRows = maxRow-minRow+1;
+            boolean inside = block.inside;
+            if (block.size()<=tileSize){
+                CellGenerator generator = new CellGenerator(grid);
+                for (int row=minRow; row<=maxRow; row++){
+                    for (int col=minCol; col<=maxCol; col++){
+                        generator.addCells(col, row, !inside, grid.callback);
+                    }
+                }
+                if (grid.metrics!=null) grid.metrics.boxes.add(block.size());
+            }
+            else if (numCols>=numRows){
+                int mid = minCol+numCols/2;
+                invokeAll(
+                    new GridTask(grid, new Block(minCol, mid-1, minRow, maxRow, 1, inside)),
+                    new GridTask(grid, new Block(mid, maxCol, minRow, maxRow, 1, inside))
+                );
+            }
+            else{
+                int mid = minRow+numRows/2;
+                invokeAll(
+                    new GridTask(grid, new Block(minCol, maxCol, minRow, mid-1, 1, inside)),
+                    new GridTask(grid, new Block(minCol, maxCol, mid, maxRow, 1, inside))
+                );
+            }
+        }
+    }
 
 
-                double dy = cellHeight/4.0;
-                double y1 = top-dy;
-                double y2 = bottom+dy;
 
-                coords = new Coordinate[]{
-                    new Coordinate(center.getOrdinate(Coordinate.X), top),
-                    new Coordinate(left, y1),
-                    new Coordinate(left, y2),
-                    new Coordinate(center.getOrdinate(Coordinate.X), bottom),
-                    new Coordinate(right, y2),
-                    new Coordinate(right, y1),
-                    new Coordinate(center.getOrdinate(Coordinate.X), top)
-                };
+  //**************************************************************************
+  //** CoverTask
+  //**************************************************************************
+  /** Used to find the keys of the cells in a block that intersect (or are
+   *  inside) the spatial filter. Uses the same traversal as the GridTask.
+   *  Cells in blocks that are entirely inside the spatial filter are
+   *  converted directly to keys.
+   */
+    private class CoverTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private Grid grid;
+        private Block block;
+        private boolean contained;
+        private boolean compact;
+        private ConcurrentLinkedQueue<long[]> results;
+
+        public CoverTask(Grid grid, Block block, boolean contained, boolean compact,
+            ConcurrentLinkedQueue<long[]> results){
+            this.grid = grid;
+            this.block = block;
+            this.contained = contained;
+            this.compact = compact;
+            this.results = results;
+        }
+
+        protected void compute(){
+
+          //Test the block against the spatial filter
+            if (!block.test(grid)) return;
 
-                polygon = (Polygon) geometryFactory.createPolygon(coords);
+
+          //Replace aligned blocks that are entirely inside the spatial filter
+          //with a single cell a few levels up (squares only)
+            boolean subdivide = block.canSubdivide(grid);
+            if (compact && block.inside && block.blockSize>1){
+                int size = block.blockSize;
+                int level = grid.level-Integer.numberOfTrailingZeros(size)/2;
+                if (level<1){
+                    subdivide = true; //entire grid
+                }
+                else if (block.size()==(long) size*size){
+                    results.add(new long[]{CellKey.encode(grid.shape, level,
+                    Math.floorDiv(block.minCol, size), Math.floorDiv(block.minRow, size), 0)});
+                    return;
+                }
+            }
+
+
+            if (subdivide){
+                ArrayList<CoverTask> tasks = new ArrayList<>();
+                for (Block b : block.subdivide()){
+                    b.inside = block.inside;
+                    tasks.add(new CoverTask(grid, b, contained, compact, results));
+                }
+                if (block.size()>tileSize){
+                    invokeAll(tasks);
+                }
+                else{
+                    for (CoverTask task : tasks) task.compute();
+                }
+                return;
             }
 
+
+          //Split large blocks in half along the longest side
+            int minCol = block.minCol;
+            int maxCol = block.maxCol;
+            int minRow = block.minRow;
+            int maxRow = block.maxRow;
+            int numCols = maxCol-minCol+1;
+            int numRows = maxRow-minRow+1;
+            boolean inside = block.inside;
+            if (block.size()>tileSize){
+                Block a, b;
+                if (numCols>=numRows){
+                    int mid = minCol+numCols/2;
+                    a = new Block(minCol, mid-1, minRow, maxRow, 1, inside);
+                    b = new Block(mid, maxCol, minRow, maxRow, 1, inside);
+                }
+                else{
+                    int mid = minRow+numRows/2;
+                    a = new Block(minCol, maxCol, minRow, mid-1, 1, inside);
+                    b = new Block(minCol, maxCol, mid, maxRow, 1, inside);
+                }
+                invokeAll(
+                    new CoverTask(grid, a, contained, compact, results),
+                    new CoverTask(grid, b, contained, compact, results)
+                );
+                return;
+            }
+
+
+          //Find cells
+            long[] keys = new long[(int) block.size()*grid.templates.length];
+            int n = 0;
+            CellGenerator generator = inside ? null : new CellGenerator(grid);
+            for (int row=minRow; row<=maxRow; row++){
+                for (int col=minCol; col<=maxCol; col++){
+                    for (CellTemplate template : grid.templates){
+                        if (grid.isWrapped(col, template)) continue;
+                        if (inside && !grid.hasCell(row, template.index)) continue; //see getCell
+                        if (!inside && !generator.test(col, row, template, contained)) continue;
+                        keys[n++] = CellKey.encode(grid.shape, grid.level, col, row, template.index);
+                    }
+                }
+            }
+            if (n>0) results.add(n==keys.length ? keys : Arrays.copyOf(keys, n));
+        }
+    }
+
+
+
+  //**************************************************************************
+  //** GridSpliterator
+  //**************************************************************************
+  /** Used to generate cells on demand for a stream. Blocks are tested against
+   *  the spatial filter and subdivided the same way as in a GridTask, except
+   *  that pending blocks are kept in a stack and cells are generated one
+   *  bounding box at a time as the stream is consumed. The spliterator is
+   *  split by handing off half of the pending blocks (or half of the
+   *  remaining rows in the current block) to a new spliterator.
+   */
+    private class GridSpliterator implements Spliterator<GridCell> {
+
+        private Grid grid;
+        private ArrayDeque<Block> blocks = new ArrayDeque<>();
+        private Block block; //current block
+        private int col, row;
+        private ArrayDeque<GridCell> cells = new ArrayDeque<>();
+        private CellGenerator generator;
+        private CellCallBack buffer = new CellCallBack(){
+            public void add(Cell cell){
+                cells.add(cell.toGridCell());
+            }
+            public void done(){}
+        };
+
+        public GridSpliterator(Grid grid, Block block){
+            this.grid = grid;
+            this.generator = new CellGenerator(grid);
+            blocks.push(block);
         }
 
+        public boolean tryAdvance(Consumer<? super GridCell> action){
+            while (cells.isEmpty()){
+                if (block==null || row>block.maxRow){
+                    if (!nextBlock()) return false;
+                }
+                generator.addCells(col, row, !block.inside, buffer);
+                col++;
+                if (col>block.maxCol){
+                    col = block.minCol;
+                    row++;
+                }
+            }
+            action.accept(cells.poll());
+            return true;
+        }
 
-      //Densify polygon as needed
-        Geometry densePolygon = polygon;
-        if (density>1){
-            double vertexSpacing = polygon.getLength() / density;
-            densePolygon = com.vividsolutions.jts.densify.Densifier.densify(polygon, vertexSpacing);
+      /** Used to find the next block with cells to generate. Returns false if
+       *  there are no more blocks.
+       */
+        private boolean nextBlock(){
+            block = null;
+            while (!blocks.isEmpty()){
+                Block b = blocks.pop();
+                if (!b.test(grid)) continue;
+                if (b.canSubdivide(grid)){
+                    ArrayList<Block> arr = b.subdivide();
+                    for (int i=arr.size()-1; i>-1; i--) blocks.push(arr.get(i));
+                    continue;
+                }
+                block = b;
+                col = b.minCol;
+                row = b.minRow;
+                return true;
+            }
+            return false;
         }
 
+        public Spliterator<GridCell> trySplit(){
 
-        try{
+          //Hand off the bottom half of the stack
+            if (blocks.size()>1){
+                int n = blocks.size()/2;
+                GridSpliterator split = new GridSpliterator(grid, blocks.pollLast());
+                for (int i=1; i<n; i++) split.blocks.push(blocks.pollLast());
+                return split;
+            }
 
-          //Convert projected coordinates to WGS84
-            Geometry g = JTS.transform(densePolygon, projToWGS84);
 
-          //Fix axis order (lat, lon)
-            for (Coordinate coord : g.getCoordinates()){
-                double x1 = coord.getOrdinate(coord.X);
-                double y1 = coord.getOrdinate(coord.Y);
-                coord.setOrdinate(coord.X, y1);
-                coord.setOrdinate(coord.Y, x1);
+          //Start the next block if the current block is done
+            if ((block==null || row>block.maxRow) && !blocks.isEmpty()){
+                if (!nextBlock()) return null;
+                if (blocks.size()>1) return trySplit();
             }
 
-            return (Polygon) g;
+
+          //Hand off half of the remaining rows in the current block
+            if (block==null) return null;
+            int numRows = block.maxRow-row;
+            if (numRows<1) return null;
+            int mid = row+1+(numRows-1)/2;
+            Block b = new Block(block.minCol, block.maxCol, mid, block.maxRow, 1, block.inside);
+            block.maxRow = mid-1;
+            return new GridSpliterator(grid, b);
         }
-        catch(Exception e){
-            return null;
+
+        public long estimateSize(){
+            long n = 0;
+            for (Block b : blocks) n += b.size();
+            if (block!=null && row<=block.maxRow){
+                n += (long) (block.maxRow-row+1)*(block.maxCol-block.minCol+1);
+            }
+            return n*grid.templates.length+cells.size();
         }
 
+        public int characteristics(){
+            return NONNULL | IMMUTABLE;
+        }
     }
 
 
+
   //**************************************************************************
-  //** shiftCoords
+  //** CellGenerator
   //**************************************************************************
-  /** Used to compute coordinates right and down from a given bounding box.
-   *  @param coords Projected coordinates (not WGS84)
+  /** Used to generate cells for individual bounding boxes in the grid. Cells
+   *  are generated directly into a packed array of coordinates in a reusable
+   *  Cell.
    */
-    private static Coordinate[] shiftCoords(Coordinate[] coords, int shape, GeometryFactory geometryFactory){
-        Polygon polygon = (Polygon) geometryFactory.createPolygon(coords);
+    private class CellGenerator {
+
+        private Grid grid;
+        private Cell cell;
+        private boolean split; //if true, split cells at the dateline
+        private double[] ring; //used to split cells
+        private double[][] rings; //vertices of each template in the current row
+        private double[] ringLats; //latitudes used to create the rings
+        private long transformTime; //time spent in the last MathTransform
+
+        public CellGenerator(Grid grid){
+            this(grid, grid.datelineMode, new Cell(grid.shape, grid.level, projID, grid.getMaxPoints()));
+        }
 
-        Coordinate ul = coords[0];
-        Coordinate ur = coords[3];
+        public CellGenerator(Grid grid, int datelineMode, Cell cell){
+            this.grid = grid;
+            this.cell = cell;
+            this.split = datelineMode==SPLIT_DATELINE;
+        }
 
-        Coordinate ll = coords[1];
-        //Coordinate lr = coords[2];
-//
-//
-//        double top = ul.getOrdinate(Coordinate.Y);
-//        double bottom = ll.getOrdinate(Coordinate.Y);
-//        double left = ul.getOrdinate(Coordinate.X);
-//        double right = ur.getOrdinate(Coordinate.X);
+      /** @param test If true, test individual cells against the spatial filter
+       *  @param callback Used to return cells
+       */
+        private void addCells(int col, int row, boolean test, CellCallBack callback){
+            GridMetrics metrics = grid.metrics;
+            if (metrics!=null){
+                addCells(col, row, test, callback, metrics);
+                return;
+            }
 
-        Coordinate center = polygon.getCentroid().getCoordinate();
+            double[] lats = grid.getLatitudes(row);
 
 
-        double cellHeight = ul.getOrdinate(Coordinate.Y)-ll.getOrdinate(Coordinate.Y);
-        double cellWidth = ul.getOrdinate(Coordinate.X)-ur.getOrdinate(Coordinate.X);
+          //Create cells. Hexagons and diamonds have a second cell to the right
+          //and slightly lower than the bounding box.
+            for (int i=0; i<grid.templates.length; i++){
+                CellTemplate template = grid.templates[i];
+                if (grid.isWrapped(col, template)) continue;
+                if (!getCell(template, col, row, lats, cell.coords)) continue;
+                cell.set(col, row, i, template.size());
+                splitCell(col, template);
+                if (test && grid.spatialFilter!=null){
+                    if (!intersects(grid.spatialFilter)) continue;
+                }
+                add(callback);
+            }
+        }
 
 
+      /** Same as addCells() except that the time spent in each stage is
+       *  recorded in the metrics
+       */
+        private void addCells(int col, int row, boolean test, CellCallBack callback,
+            GridMetrics metrics){
 
-        if (shape==HEX_SHAPE){
+            double[] lats = grid.getLatitudes(row);
 
+            for (int i=0; i<grid.templates.length; i++){
+                CellTemplate template = grid.templates[i];
+                if (grid.isWrapped(col, template)){
+                    metrics.border.increment();
+                    continue;
+                }
+                transformTime = 0;
+                long t0 = System.nanoTime();
+                boolean ok = getCell(template, col, row, lats, cell.coords);
+                if (ok){
+                    cell.set(col, row, i, template.size());
+                    splitCell(col, template);
+                }
+                long t1 = System.nanoTime();
+                metrics.buildTime.add(t1-t0-transformTime);
+                metrics.transformTime.add(transformTime);
+                if (!ok) continue;
+                if (test && grid.spatialFilter!=null){
+                    boolean intersects = intersects(grid.spatialFilter);
+                    metrics.filterTime.add(System.nanoTime()-t1);
+                    if (!intersects){
+                        metrics.rejected.increment();
+                        continue;
+                    }
+                }
+                long t2 = System.nanoTime();
+                add(callback);
+                metrics.callbackTime.add(System.nanoTime()-t2);
+                metrics.cells.increment();
+            }
+        }
 
-            double a = cellHeight/4.0;
-            return new Coordinate[]{
-                new Coordinate(center.getOrdinate(Coordinate.X), center.getOrdinate(Coordinate.Y)-a), //ul
-                new Coordinate(center.getOrdinate(Coordinate.X), center.getOrdinate(Coordinate.Y)-cellHeight-a), //ll
-                new Coordinate(center.getOrdinate(Coordinate.X)-cellWidth, center.getOrdinate(Coordinate.Y)-cellHeight-a), //lr
-                new Coordinate(center.getOrdinate(Coordinate.X)-cellWidth, center.getOrdinate(Coordinate.Y)-a), //ur
-                new Coordinate(center.getOrdinate(Coordinate.X), center.getOrdinate(Coordinate.Y)-a)
-            };
+
+      /** Returns true if a cell intersects the spatial filter. Used to compute
+       *  covers without passing cells to a callback.
+       *  @param contained If true, returns true only if the cell is entirely
+       *  inside the spatial filter
+       */
+        private boolean test(int col, int row, CellTemplate template, boolean contained){
+            if (!getCell(template, col, row, grid.getLatitudes(row), cell.coords)) return false;
+            cell.set(col, row, template.index, template.size());
+            splitCell(col, template);
+
+            SpatialFilter filter = grid.spatialFilter;
+            int result = cell.split>0 ? -1 : filter.intersects(cell.coords, cell.numPoints);
+            if (result>=0) return result==1;
+            return contained ? filter.contains(cell.getGeom()) : filter.intersects(cell.getGeom());
         }
-        else{
 
-          //Create new square (right and down from previous original square)
-            return new Coordinate[]{
-                new Coordinate(center.getOrdinate(Coordinate.X), center.getOrdinate(Coordinate.Y)), //ul
-                new Coordinate(center.getOrdinate(Coordinate.X), center.getOrdinate(Coordinate.Y)-cellHeight), //ll
-                new Coordinate(center.getOrdinate(Coordinate.X)-cellWidth, center.getOrdinate(Coordinate.Y)-cellHeight), //lr
-                new Coordinate(center.getOrdinate(Coordinate.X)-cellWidth, center.getOrdinate(Coordinate.Y)), //ur
-                new Coordinate(center.getOrdinate(Coordinate.X), center.getOrdinate(Coordinate.Y))
-            };
+
+      /** Used to pass the current cell to the callback
+       */
+        private void add(CellCallBack callback){
+            Grid parent = grid.parent;
+            if (parent!=null) cell.parent = grid.getParent(cell.col, cell.row, cell.index, parent);
+            try{
+                callback.add(cell);
+            }
+            catch(Exception e){
+                grid.errors.incrementAndGet();
+                console.log(cell.getGeom());
+                e.printStackTrace();
+            }
+        }
+
+
+      /** Returns true if the current cell intersects the spatial filter. Only
+       *  creates a polygon if the cell is near the boundary of the filter.
+       */
+        private boolean intersects(SpatialFilter filter){
+            if (cell.split>0) return filter.intersects(cell.getGeom());
+            int result = filter.intersects(cell.coords, cell.numPoints);
+            if (result<0) return filter.intersects(cell.getGeom());
+            return result==1;
+        }
+
+
+      /** Used to split the current cell into two polygons if the cell crosses
+       *  the dateline and the grid is configured to split cells. The first
+       *  polygon is west of the dateline (e.g. 178.5 to 180) and the second is
+       *  east of the dateline (e.g. -180 to -178.5). Vertices of other cells
+       *  along the edges of the grid are clamped to -180 and 180.
+       */
+        void splitCell(int col, CellTemplate template){
+            if (!split || !grid.isEdge(col, template)) return;
+
+            int n = cell.numPoints;
+            double[] coords = cell.coords;
+            if (!grid.crossesDateline(col, template)){
+                for (int i=0; i<n; i++){
+                    coords[i*2] = Math.max(-180, Math.min(180, coords[i*2]));
+                }
+                return;
+            }
+
+            if (ring==null || ring.length<n*2) ring = new double[n*2];
+            System.arraycopy(coords, 0, ring, 0, n*2);
+
+
+          //Unwrap longitudes in case the projection normalizes them. Snap
+          //vertices on the dateline to 180 to avoid slivers.
+            for (int i=0; i<n; i++){
+                double lon = ring[i*2];
+                if (lon<0) lon += 360;
+                if (Math.abs(lon-180)<1e-9) lon = 180;
+                ring[i*2] = lon;
+            }
+
+
+          //Clip the ring on either side of the dateline. Cells are convex so
+          //each side is a single ring.
+            int a = clip(ring, n, true, coords, 0);
+            int b = clip(ring, n, false, coords, a);
+            if (a<4 || b<4){
+                System.arraycopy(ring, 0, coords, 0, n*2);
+                return;
+            }
+            cell.numPoints = a+b;
+            cell.split = a;
+        }
+
+
+      /** Used to clip a ring at the dateline (Sutherland-Hodgman). Vertices
+       *  east of the dateline are shifted by 360 degrees. Returns the number of
+       *  vertices in the clipped ring, including the closing vertex.
+       *  @param west If true, returns the part of the ring west of the dateline
+       *  @param offset Index of the first vertex in the output array
+       */
+        private int clip(double[] ring, int n, boolean west, double[] coords, int offset){
+            double shift = west ? 0 : -360;
+            int idx = offset*2;
+            for (int i=0; i<n-1; i++){
+                double x0 = ring[i*2], y0 = ring[i*2+1];
+                double x1 = ring[i*2+2], y1 = ring[i*2+3];
+                if (west ? x0<=180 : x0>=180){
+                    coords[idx++] = x0+shift;
+                    coords[idx++] = y0;
+                }
+                if ((x0<180 && x1>180) || (x0>180 && x1<180)){
+                    coords[idx++] = 180+shift;
+                    coords[idx++] = y0+(y1-y0)*(180-x0)/(x1-x0);
+                }
+            }
+            int numPoints = idx/2-offset;
+            if (numPoints>0){
+                coords[idx++] = coords[offset*2];
+                coords[idx++] = coords[offset*2+1];
+                numPoints++;
+            }
+            return numPoints;
+        }
+
+
+      /** Returns a packed array of vertices for a given template in a row of
+       *  cells. Longitudes are relative to the lower left corner of the
+       *  bounding box. The vertices are computed once per row and reused for
+       *  every cell in the row. Cells are generated row by row so only the
+       *  current row is kept.
+       *  @param lats Latitudes for the row (see Grid.getLatitudes)
+       */
+        private double[] getRing(CellTemplate template, double[] lats){
+            if (lats!=ringLats){
+                if (rings==null) rings = new double[grid.templates.length][];
+                for (CellTemplate t : grid.templates){
+                    double[] ring = rings[t.index];
+                    if (ring==null) ring = rings[t.index] = new double[t.size()*2];
+                    double[] offsets = grid.lonOffsets[t.index];
+                    for (int i=0; i<offsets.length; i++){
+                        ring[i*2] = offsets[i];
+                        ring[i*2+1] = lats[t.latOffset+t.yIndex[i]];
+                    }
+                }
+                ringLats = lats;
+            }
+            return rings[template.index];
+        }
+
+
+      /** Used to compute the coordinates of a cell in WGS84 for a given
+       *  template and bounding box. Uses precomputed vertices for
+       *  cylindrical projections. Otherwise, each vertex is transformed using
+       *  the MathTransform. Returns false if the cell can't be projected.
+       *  @param coords Packed array used to store the coordinates (lon, lat)
+       */
+        private boolean getCell(CellTemplate template, int col, int row,
+            double[] lats, double[] coords){
+            int n = template.size();
+
+            if (lats!=null){
+                if (lats.length==0) return false;
+
+
+              //Skip cells that are entirely beyond the poles
+                int idx = template.latOffset;
+                if (lats[idx]==lats[idx+template.yValues.length-1]) return false;
+
+
+              //Every cell in a row has the same vertices, shifted by the
+              //longitude of the bounding box
+                double[] ring = getRing(template, lats);
+                double lon = grid.getLongitude(col);
+                for (int i=0; i<n*2; i+=2){
+                    coords[i] = lon+ring[i];
+                    coords[i+1] = ring[i+1];
+                }
+            }
+            else{
+                double gridSize = grid.gridSize;
+                double x = grid.x0+col*gridSize;
+                double y = row*grid.rowHeight;
+                for (int i=0; i<n; i++){
+                    coords[i*2] = x+template.x[i]*gridSize;
+                    coords[i*2+1] = y+template.y[i]*gridSize;
+                }
+                long t = grid.metrics==null ? 0 : System.nanoTime();
+                try{
+                    ProjToWGS84.transform(coords, 0, coords, 0, n);
+                }
+                catch(Exception e){
+                    return false;
+                }
+                finally{
+                    if (grid.metrics!=null) transformTime = System.nanoTime()-t;
+                }
+
+              //Fix axis order (lat, lon)
+                for (int i=0; i<n; i++){
+                    double lat = coords[i*2];
+                    double lon = coords[i*2+1];
+                    if (Double.isNaN(lat) || Double.isNaN(lon)) return false;
+                    coords[i*2] = lon;
+                    coords[i*2+1] = lat;
+                }
+            }
+
+            return true;
         }
     }
 
 
+
   //**************************************************************************
   //** getArea
   //**************************************************************************
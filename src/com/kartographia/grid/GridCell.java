@@ -18,25 +18,25 @@ public class GridCell extends javaxt.sql.Model {
     private Integer level;
     private Geometry geom;
     private Integer proj;
-    private Integer hash;
+    private Long hash;
     private JSONObject info;
 
+    private static final java.util.HashMap<String, String> fields =
+    new java.util.HashMap<String, String>() {{
+        put("shape", "shape");
+        put("level", "level");
+        put("geom", "geom");
+        put("proj", "proj");
+        put("hash", "hash");
+        put("info", "info");
+    }};
+
 
   //**************************************************************************
   //** Constructor
   //**************************************************************************
     public GridCell(){
-        super("grid_cell", new java.util.HashMap<String, String>() {{
-            
-            put("shape", "shape");
-            put("level", "level");
-            put("geom", "geom");
-            put("proj", "proj");
-            put("hash", "hash");
-            put("info", "info");
-
-        }});
-        
+        super("grid_cell", fields);
     }
 
 
@@ -76,7 +76,7 @@ public class GridCell extends javaxt.sql.Model {
             this.level = getValue(rs, "level").toInteger();
             this.geom = new WKTReader().read(getValue(rs, "geom").toString());
             this.proj = getValue(rs, "proj").toInteger();
-            this.hash = getValue(rs, "hash").toInteger();
+            this.hash = getValue(rs, "hash").toLong();
             this.info = new JSONObject(getValue(rs, "info").toString());
 
 
@@ -104,7 +104,7 @@ public class GridCell extends javaxt.sql.Model {
         }
         catch(Exception e) {}
         this.proj = json.get("proj").toInteger();
-        this.hash = json.get("hash").toInteger();
+        this.hash = json.get("hash").toLong();
         this.info = json.get("info").toJSONObject();
     }
 
@@ -141,11 +141,11 @@ public class GridCell extends javaxt.sql.Model {
         this.proj = proj;
     }
 
-    public Integer getHash(){
+    public Long getHash(){
         return hash;
     }
 
-    public void setHash(Integer hash){
+    public void setHash(Long hash){
         this.hash = hash;
     }
 
@@ -0,0 +1,467 @@
+package com.kartographia.grid;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+//******************************************************************************
+//**  GridCellExporter
+//******************************************************************************
+/**
+ *   Used to write grid cells to a file as they are generated. Cells are
+ *   serialized by the threads that generate them directly into small
+ *   per-thread byte buffers. Full buffers are handed off to a single writer
+ *   thread via a bounded BatchQueue so memory usage is constant regardless
+ *   of the size of the grid. Supported formats:
+ *   <ul>
+ *   <li>GEOJSON - Newline delimited GeoJSON features (GeoJSONSeq).
+ *   Coordinates are written with up to 9 decimal places.</li>
+ *   <li>WKB - One cell per line with the cell key and a hex encoded EWKB
+ *   polygon separated by a tab. Can be loaded into PostGIS via COPY.</li>
+ *   </ul>
+ *   Cells that are split at the dateline are written as multipolygons.
+ *   Files ending in ".gz" are compressed. Example:
+ <pre>
+    GridCellExporter exporter = new GridCellExporter(new File("grid.geojson"));
+    grid.createGrid(shape, level, density, geom, numThreads, exporter);
+ </pre>
+ *   Note that an instance of this class can only be used once. The file is
+ *   closed when done() is called. The file is always overwritten so the
+ *   exporter can't be used to resume a grid from a GridCheckpoint.
+ *
+ ******************************************************************************/
+
+public class GridCellExporter implements GridBuilder.CellCallBack, Flushable {
+
+    public static final int GEOJSON = 1;
+    public static final int WKB = 2;
+
+    private static final int chunkSize = 256*1024; //bytes per buffer
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final long SCALE = 1000000000L; //decimal places in GeoJSON
+
+    private int format;
+    private OutputStream out;
+    private BatchQueue<Chunk> queue = new BatchQueue<>(16);
+    private Thread writer;
+    private volatile IOException error;
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong pending = new AtomicLong(); //chunks in the queue or being written
+    private ConcurrentLinkedQueue<Chunk[]> buffers = new ConcurrentLinkedQueue<>();
+    private ThreadLocal<Chunk[]> buffer = new ThreadLocal<Chunk[]>(){
+        protected Chunk[] initialValue(){
+            Chunk[] buffer = new Chunk[]{new Chunk()};
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create a new file. The format is based on the file extension
+   *  (".wkb" or ".tsv" for WKB, GeoJSON otherwise). Files ending in ".gz"
+   *  are compressed.
+   */
+    public GridCellExporter(File file) throws IOException {
+        this(file, getFormat(file.getName()));
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param format GEOJSON or WKB
+   */
+    public GridCellExporter(File file, int format) throws IOException {
+        this(file.getName().toLowerCase().endsWith(".gz") ?
+            new GZIPOutputStream(new FileOutputStream(file), 64*1024) :
+            new FileOutputStream(file), format);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param out Output stream. The stream is closed when done() is called.
+   *  @param format GEOJSON or WKB
+   */
+    public GridCellExporter(OutputStream out, int format){
+        if (format!=GEOJSON && format!=WKB) throw new IllegalArgumentException("Invalid format: " + format);
+        this.format = format;
+        this.out = new BufferedOutputStream(out, 64*1024);
+        writer = new Thread(new Runnable(){
+            public void run(){
+                write();
+            }
+        });
+        writer.start();
+    }
+
+
+  //**************************************************************************
+  //** getFormat
+  //**************************************************************************
+  /** Returns the format associated with a file name
+   */
+    public static int getFormat(String fileName){
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".gz")) name = name.substring(0, name.length()-3);
+        if (name.endsWith(".wkb") || name.endsWith(".tsv")) return WKB;
+        return GEOJSON;
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to serialize a cell into the current thread's buffer. The buffer
+   *  is handed off to the writer once it is full. Blocks if the writer is
+   *  unable to keep up.
+   */
+    public void add(Cell cell){
+        Chunk[] buffer = this.buffer.get();
+        Chunk chunk = buffer[0];
+        chunk.ensureCapacity(256+cell.getNumPoints()*64);
+        if (format==WKB) appendWKB(cell, chunk);
+        else appendGeoJSON(cell, chunk);
+        count.incrementAndGet();
+        if (chunk.size>=chunkSize){
+            put(buffer);
+        }
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Used to write any buffered cells to the file. Assumes that add() is not
+   *  called while flushing.
+   */
+    public void flush() throws IOException {
+        for (Chunk[] buffer : buffers) put(buffer);
+
+        synchronized(pending){
+            while (pending.get()>0){
+                try{
+                    pending.wait();
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        if (error!=null) throw error;
+        synchronized(out){
+            out.flush();
+        }
+    }
+
+
+  //**************************************************************************
+  //** done
+  //**************************************************************************
+  /** Used to write any buffered cells and close the file. Assumes that add()
+   *  will no longer be called.
+   */
+    public void done(){
+        for (Chunk[] buffer : buffers) put(buffer);
+        queue.close();
+        while (true){
+            try{
+                writer.join();
+                break;
+            }
+            catch(InterruptedException e){}
+        }
+        try{
+            out.close();
+        }
+        catch(IOException e){
+            if (error==null) error = e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getCount
+  //**************************************************************************
+  /** Returns the number of cells that have been exported
+   */
+    public long getCount(){
+        return count.get();
+    }
+
+
+  //**************************************************************************
+  //** getError
+  //**************************************************************************
+  /** Returns the first error encountered while writing the file, if any
+   */
+    public IOException getError(){
+        return error;
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+    private void put(Chunk[] buffer){
+        Chunk chunk = buffer[0];
+        if (chunk.size==0) return;
+        buffer[0] = new Chunk();
+        pending.incrementAndGet();
+        try{
+            queue.put(Collections.singletonList(chunk));
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            processed();
+        }
+    }
+
+
+  //**************************************************************************
+  //** processed
+  //**************************************************************************
+    private void processed(){
+        if (pending.decrementAndGet()==0){
+            synchronized(pending){
+                pending.notifyAll();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used by the writer thread to write chunks until the queue is closed.
+   *  Chunks are discarded after an error so the producers aren't blocked.
+   */
+    private void write(){
+        while (true){
+            List<Chunk> batch;
+            try{
+                batch = queue.take();
+            }
+            catch(InterruptedException e){
+                break;
+            }
+            if (batch==null) break;
+
+            try{
+                if (error==null){
+                    synchronized(out){
+                        for (Chunk chunk : batch) out.write(chunk.data, 0, chunk.size);
+                    }
+                }
+            }
+            catch(IOException e){
+                error = e;
+            }
+            finally{
+                processed();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** appendGeoJSON
+  //**************************************************************************
+    private static void appendGeoJSON(Cell cell, Chunk chunk){
+        chunk.append("{\"type\":\"Feature\",\"id\":");
+        chunk.append(cell.getKey());
+        double[] coords = cell.getCoordinates();
+        if (cell.getNumParts()==1){
+            chunk.append(",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":");
+            appendRing(coords, 0, cell.getNumPoints(), chunk);
+        }
+        else{
+            chunk.append(",\"geometry\":{\"type\":\"MultiPolygon\",\"coordinates\":[");
+            int start = 0;
+            for (int i=0; i<cell.getNumParts(); i++){
+                if (i>0) chunk.append((byte) ',');
+                appendRing(coords, start, cell.getNumPoints(i), chunk);
+                start += cell.getNumPoints(i);
+            }
+            chunk.append((byte) ']');
+        }
+        chunk.append("},\"properties\":{\"shape\":");
+        chunk.append(cell.getShape());
+        chunk.append(",\"level\":");
+        chunk.append(cell.getLevel());
+        chunk.append(",\"proj\":");
+        chunk.append(cell.getProj());
+        chunk.append("}}\n");
+    }
+
+
+  //**************************************************************************
+  //** appendRing
+  //**************************************************************************
+  /** Appends the coordinates of a polygon with a single ring to a buffer
+   */
+    private static void appendRing(double[] coords, int start, int numPoints, Chunk chunk){
+        chunk.append("[[");
+        for (int i=start; i<start+numPoints; i++){
+            if (i>start) chunk.append((byte) ',');
+            chunk.append((byte) '[');
+            appendDecimal(coords[i*2], chunk);
+            chunk.append((byte) ',');
+            appendDecimal(coords[i*2+1], chunk);
+            chunk.append((byte) ']');
+        }
+        chunk.append("]]");
+    }
+
+
+  //**************************************************************************
+  //** appendDecimal
+  //**************************************************************************
+  /** Appends a number with up to 9 decimal places to a buffer. Much faster
+   *  than Double.toString() and more than enough precision for lat/lon.
+   */
+    private static void appendDecimal(double value, Chunk chunk){
+        long n = Math.round(value*SCALE);
+        if (n<0){
+            chunk.append((byte) '-');
+            n = -n;
+        }
+        chunk.append(n/SCALE);
+        long fraction = n%SCALE;
+        if (fraction==0) return;
+
+
+      //Remove trailing zeros and add leading zeros
+        int numDigits = 9;
+        while (fraction%10==0){
+            fraction /= 10;
+            numDigits--;
+        }
+        chunk.append((byte) '.');
+        for (long d=fraction*10; d<pow10(numDigits); d*=10){
+            chunk.append((byte) '0');
+        }
+        chunk.append(fraction);
+    }
+
+    private static long pow10(int n){
+        long d = 1;
+        for (int i=0; i<n; i++) d *= 10;
+        return d;
+    }
+
+
+  //**************************************************************************
+  //** appendWKB
+  //**************************************************************************
+  /** Appends the cell key and a hex encoded EWKB polygon (big endian, SRID
+   *  4326) to a buffer. Cells that are split at the dateline are encoded as
+   *  multipolygons.
+   */
+    private static void appendWKB(Cell cell, Chunk chunk){
+        chunk.append(cell.getKey());
+        chunk.append((byte) '\t');
+        chunk.append("00"); //big endian
+        double[] coords = cell.getCoordinates();
+        if (cell.getNumParts()==1){
+            appendHex(0x20000003, 8, chunk); //polygon with an SRID
+            appendHex(4326, 8, chunk);
+            appendPolygon(coords, 0, cell.getNumPoints(), chunk);
+        }
+        else{
+            appendHex(0x20000006, 8, chunk); //multipolygon with an SRID
+            appendHex(4326, 8, chunk);
+            appendHex(cell.getNumParts(), 8, chunk);
+            int start = 0;
+            for (int i=0; i<cell.getNumParts(); i++){
+                chunk.append("00");
+                appendHex(3, 8, chunk); //polygon
+                appendPolygon(coords, start, cell.getNumPoints(i), chunk);
+                start += cell.getNumPoints(i);
+            }
+        }
+        chunk.append((byte) '\n');
+    }
+
+
+  //**************************************************************************
+  //** appendPolygon
+  //**************************************************************************
+  /** Appends the rings and vertices of a polygon with a single ring to a
+   *  buffer
+   */
+    private static void appendPolygon(double[] coords, int start, int numPoints, Chunk chunk){
+        appendHex(1, 8, chunk); //number of rings
+        appendHex(numPoints, 8, chunk);
+        for (int i=start*2; i<(start+numPoints)*2; i++){
+            appendHex(Double.doubleToLongBits(coords[i]), 16, chunk);
+        }
+    }
+
+
+  //**************************************************************************
+  //** appendHex
+  //**************************************************************************
+  /** Appends the last n hex digits of a value to a buffer
+   */
+    private static void appendHex(long value, int n, Chunk chunk){
+        byte[] data = chunk.data;
+        int size = chunk.size;
+        for (int i=(n-1)*4; i>=0; i-=4){
+            data[size++] = HEX[(int) (value>>>i) & 0xF];
+        }
+        chunk.size = size;
+    }
+
+
+  //**************************************************************************
+  //** Chunk
+  //**************************************************************************
+  /** Byte array used to serialize cells. Only ASCII characters are written.
+   */
+    private static class Chunk {
+        private byte[] data = new byte[chunkSize+4096];
+        private int size;
+
+        public void ensureCapacity(int n){
+            if (size+n>data.length) data = Arrays.copyOf(data, Math.max(data.length*2, size+n));
+        }
+
+        public void append(byte b){
+            data[size++] = b;
+        }
+
+        public void append(String str){
+            ensureCapacity(str.length());
+            for (int i=0; i<str.length(); i++) data[size++] = (byte) str.charAt(i);
+        }
+
+        public void append(long value){
+            if (value<0){
+                if (value==Long.MIN_VALUE){
+                    append(Long.toString(value));
+                    return;
+                }
+                data[size++] = '-';
+                value = -value;
+            }
+            int start = size;
+            do {
+                data[size++] = (byte) ('0' + value%10);
+                value /= 10;
+            } while (value>0);
+            for (int i=start, j=size-1; i<j; i++, j--){ //reverse digits
+                byte b = data[i];
+                data[i] = data[j];
+                data[j] = b;
+            }
+        }
+    }
+}
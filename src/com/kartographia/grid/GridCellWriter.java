@@ -0,0 +1,319 @@
+package com.kartographia.grid;
+import com.vividsolutions.jts.io.WKBWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javaxt.sql.Database;
+import javaxt.utils.Console;
+
+//******************************************************************************
+//**  GridCellWriter
+//******************************************************************************
+/**
+ *   Used to insert GridCells into the grid_cell table in batches. Cells are
+ *   buffered by each thread that calls add() and are handed off to a set of
+ *   writer threads once a batch is full. Each writer has its own connection
+ *   to the database and inserts batches using a prepared statement. Cells
+ *   with a hash (cell key) that is already in the table for a given
+ *   projection are silently ignored (requires PostgreSQL 9.5+). Example:
+ <pre>
+    GridCellWriter writer = new GridCellWriter(database, 1000, 4);
+    grid.createGrid(shape, level, density, geom, numThreads, writer);
+ </pre>
+ *   Note that an instance of this class can only be used once. The writer
+ *   threads are stopped when done() is called. The flush() method is called
+ *   by the GridBuilder after every band when a GridCheckpoint is used.
+ *
+ ******************************************************************************/
+
+public class GridCellWriter implements GridBuilder.CallBack, Flushable {
+
+    private static Console console = new Console();
+    private static final String SQL =
+    "INSERT INTO grid_cell (shape, level, geom, proj, hash, info) " +
+    "VALUES (?, ?, ST_GeomFromWKB(?, 4326), ?, ?, ?::jsonb) " +
+    "ON CONFLICT (proj, hash) DO NOTHING";
+
+    private int batchSize;
+    private BatchQueue<GridCell> queue;
+    private ArrayList<Thread> writers = new ArrayList<>();
+    private ConcurrentLinkedQueue<ArrayList<GridCell>> buffers = new ConcurrentLinkedQueue<>();
+    private ThreadLocal<ArrayList<GridCell>> buffer = new ThreadLocal<ArrayList<GridCell>>(){
+        protected ArrayList<GridCell> initialValue(){
+            ArrayList<GridCell> buffer = new ArrayList<>(batchSize);
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    private AtomicLong inserts = new AtomicLong();
+    private AtomicLong duplicates = new AtomicLong();
+    private AtomicLong errors = new AtomicLong();
+    private AtomicLong pending = new AtomicLong(); //batches in the queue or being inserted
+    private long flushedErrors;
+    private volatile GridMetrics metrics;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param database Database with an initialized connection pool
+   *  @param batchSize Number of rows to insert per batch
+   *  @param numWriters Number of writer threads. Each thread uses a separate
+   *  connection from the connection pool.
+   */
+    public GridCellWriter(final Database database, int batchSize, int numWriters) {
+        if (batchSize<1) batchSize = 1;
+        if (numWriters<1) numWriters = 1;
+        this.batchSize = batchSize;
+        this.queue = new BatchQueue<>(numWriters*4);
+
+        for (int i=0; i<numWriters; i++){
+            Thread thread = new Thread(new Runnable(){
+                public void run(){
+                    write(database);
+                }
+            });
+            writers.add(thread);
+            thread.start();
+        }
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add a cell to the current thread's buffer. The buffer is handed
+   *  off to one of the writer threads once it is full. Blocks if the writers
+   *  are unable to keep up.
+   */
+    public void add(GridCell cell){
+        ArrayList<GridCell> batch = buffer.get();
+        batch.add(cell);
+        if (batch.size()>=batchSize){
+            ArrayList<GridCell> cells = new ArrayList<>(batch);
+            batch.clear();
+            put(cells);
+        }
+    }
+
+
+  //**************************************************************************
+  //** done
+  //**************************************************************************
+  /** Used to flush any buffered cells and wait for the writers to finish.
+   *  Assumes that add() will no longer be called.
+   */
+    public void done(){
+        for (ArrayList<GridCell> batch : buffers){
+            if (batch.isEmpty()) continue;
+            put(new ArrayList<>(batch));
+            batch.clear();
+        }
+        queue.close();
+
+        for (Thread thread : writers){
+            while (true){
+                try{
+                    thread.join();
+                    break;
+                }
+                catch(InterruptedException e){}
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** flush
+  //**************************************************************************
+  /** Used to hand off any buffered cells to the writers and wait until all
+   *  the cells have been committed to the database. Assumes that add() is
+   *  not called while flushing.
+   *  @throws IOException if any cells failed to insert since the last flush
+   */
+    public void flush() throws IOException {
+        for (ArrayList<GridCell> batch : buffers){
+            if (batch.isEmpty()) continue;
+            put(new ArrayList<>(batch));
+            batch.clear();
+        }
+
+        synchronized(pending){
+            while (pending.get()>0){
+                try{
+                    pending.wait();
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        long n = errors.get();
+        if (n>flushedErrors){
+            long numErrors = n-flushedErrors;
+            flushedErrors = n;
+            throw new IOException("Failed to insert " + numErrors + " cells");
+        }
+    }
+
+
+  //**************************************************************************
+  //** setMetrics
+  //**************************************************************************
+  /** Used to report duplicates and the number of batches waiting to be
+   *  inserted (queue depth) to a GridMetrics instance
+   */
+    public void setMetrics(GridMetrics metrics){
+        this.metrics = metrics;
+        if (metrics!=null) metrics.setQueue(queue);
+    }
+
+
+  //**************************************************************************
+  //** getInserts
+  //**************************************************************************
+  /** Returns the number of rows inserted into the database
+   */
+    public long getInserts(){
+        return inserts.get();
+    }
+
+
+  //**************************************************************************
+  //** getDuplicates
+  //**************************************************************************
+  /** Returns the number of cells that were skipped because a cell with the
+   *  same hash is already in the database
+   */
+    public long getDuplicates(){
+        return duplicates.get();
+    }
+
+
+  //**************************************************************************
+  //** getErrors
+  //**************************************************************************
+  /** Returns the number of cells that could not be inserted due to an error
+   */
+    public long getErrors(){
+        return errors.get();
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+    private void put(ArrayList<GridCell> batch){
+        pending.incrementAndGet();
+        try{
+            queue.put(batch);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            errors.addAndGet(batch.size());
+            processed();
+        }
+    }
+
+
+  //**************************************************************************
+  //** processed
+  //**************************************************************************
+  /** Called after a batch has been committed or discarded. Wakes up threads
+   *  waiting in flush() once there are no more pending batches.
+   */
+    private void processed(){
+        if (pending.decrementAndGet()==0){
+            synchronized(pending){
+                pending.notifyAll();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used by a writer thread to insert batches of cells until the queue is
+   *  closed
+   */
+    private void write(Database database){
+        javaxt.sql.Connection conn = null;
+        try{
+            conn = database.getConnection();
+            java.sql.Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            PreparedStatement stmt = c.prepareStatement(SQL);
+            WKBWriter wkbWriter = new WKBWriter();
+
+            while (true){
+                List<GridCell> batch = queue.take();
+                if (batch==null) break;
+
+                try{
+                    for (GridCell cell : batch){
+                        stmt.setInt(1, cell.getShape());
+                        stmt.setInt(2, cell.getLevel());
+                        stmt.setBytes(3, wkbWriter.write(cell.getGeom()));
+                        stmt.setInt(4, cell.getProj());
+                        stmt.setLong(5, cell.getHash());
+                        if (cell.getInfo()==null) stmt.setNull(6, Types.VARCHAR);
+                        else stmt.setString(6, cell.getInfo().toString());
+                        stmt.addBatch();
+                    }
+
+                    int n = 0;
+                    for (int i : stmt.executeBatch()){
+                        if (i>0 || i==PreparedStatement.SUCCESS_NO_INFO) n++;
+                    }
+                    c.commit();
+                    inserts.addAndGet(n);
+                    duplicates.addAndGet(batch.size()-n);
+                    GridMetrics metrics = this.metrics;
+                    if (metrics!=null) metrics.duplicates.add(batch.size()-n);
+                }
+                catch(SQLException e){
+                    errors.addAndGet(batch.size());
+                    stmt.clearBatch();
+                    c.rollback();
+                    console.log(e.getMessage());
+                }
+                finally{
+                    processed();
+                }
+            }
+
+            stmt.close();
+            c.setAutoCommit(true);
+        }
+        catch(Exception e){
+            e.printStackTrace();
+        }
+        finally{
+            if (conn!=null) conn.close();
+        }
+
+
+      //Drain the queue if something went wrong so we don't block the caller
+        while (true){
+            try{
+                List<GridCell> batch = queue.take();
+                if (batch==null) break;
+                errors.addAndGet(batch.size());
+                processed();
+            }
+            catch(InterruptedException e){
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.kartographia.grid;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+//******************************************************************************
+//**  GridCheckpoint
+//******************************************************************************
+/**
+ *   Used to record the progress of a long running grid so that it can be
+ *   resumed after a failure (e.g. the JVM or the database connection dies).
+ *   The GridBuilder splits the grid into bands of columns and records each
+ *   band in a file once all of its cells have been generated and flushed.
+ *   When the grid is restarted with the same file, completed bands are
+ *   skipped. Example:
+ <pre>
+    grid.setCheckpoint(new GridCheckpoint(new File("level9.checkpoint")));
+    grid.createGrid(shape, level, density, geom, numThreads, writer);
+ </pre>
+ *   The first line in the file identifies the grid (shape, level, projection,
+ *   and spatial filter). The remaining lines are the indexes of the completed
+ *   bands. A checkpoint can't be used to resume a different grid.
+ *
+ ******************************************************************************/
+
+public class GridCheckpoint {
+
+    private File file;
+    private String header;
+    private HashSet<Integer> bands = new HashSet<>();
+    private FileOutputStream out;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param file Used to store the checkpoint. The file is created as needed.
+   */
+    public GridCheckpoint(File file){
+        this.file = file;
+    }
+
+
+  //**************************************************************************
+  //** getFile
+  //**************************************************************************
+    public File getFile(){
+        return file;
+    }
+
+
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+  /** Called by the GridBuilder before generating cells. Reads completed
+   *  bands from the file or creates a new file. An incomplete line at the
+   *  end of the file (e.g. the process died while a band was recorded) is
+   *  ignored and removed from the file.
+   *  @param header Used to identify the grid
+   *  @throws IllegalStateException if the file was created for a different
+   *  grid
+   */
+    synchronized void open(String header) throws IOException {
+        close();
+        bands.clear();
+        this.header = header;
+
+        byte[] bytes = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+
+
+      //Ignore anything after the last newline. Every line is written with a
+      //trailing newline so the last line is incomplete if the process died
+      //while it was being written (e.g. "12" instead of "123").
+        int length = 0;
+        for (int i=bytes.length-1; i>=0; i--){
+            if (bytes[i]=='\n'){
+                length = i+1;
+                break;
+            }
+        }
+
+        if (length>0){
+            String[] lines = new String(bytes, 0, length, StandardCharsets.UTF_8).split("\n");
+            if (!header.equals(lines[0])) throw new IllegalStateException(
+                "Checkpoint was created for a different grid: " + lines[0]);
+
+            for (int i=1; i<lines.length; i++){
+                String line = lines[i].trim();
+                if (line.isEmpty()) continue;
+                try{
+                    bands.add(Integer.parseInt(line));
+                }
+                catch(NumberFormatException e){
+                    //corrupt line, regenerate the band
+                }
+            }
+
+
+          //Remove the incomplete line so that new bands aren't appended to it
+            if (length<bytes.length){
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+                    raf.setLength(length);
+                }
+            }
+            out = new FileOutputStream(file, true);
+        }
+        else{
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir!=null) dir.mkdirs();
+            out = new FileOutputStream(file);
+            write(header);
+        }
+    }
+
+
+  //**************************************************************************
+  //** isComplete
+  //**************************************************************************
+  /** Returns true if all the cells in a band have been generated
+   */
+    public synchronized boolean isComplete(int band){
+        return bands.contains(band);
+    }
+
+
+  //**************************************************************************
+  //** setComplete
+  //**************************************************************************
+  /** Used to record a completed band. The file is synced to disk before the
+   *  method returns.
+   */
+    synchronized void setComplete(int band) throws IOException {
+        if (!bands.add(band)) return;
+        write(band+"");
+    }
+
+
+  //**************************************************************************
+  //** getCompletedBands
+  //**************************************************************************
+  /** Returns the number of bands that have been completed
+   */
+    public synchronized int getCompletedBands(){
+        return bands.size();
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    synchronized void close(){
+        if (out==null) return;
+        try{ out.close(); }
+        catch(IOException e){}
+        out = null;
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+  /** Used to delete the checkpoint file (e.g. when a grid is cleared)
+   */
+    public synchronized void delete(){
+        close();
+        bands.clear();
+        file.delete();
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+    private void write(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        out.getFD().sync();
+    }
+}
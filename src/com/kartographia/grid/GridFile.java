@@ -0,0 +1,532 @@
+package com.kartographia.grid;
+import com.vividsolutions.jts.geom.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+//******************************************************************************
+//**  GridFile
+//******************************************************************************
+/**
+ *   Used to read and write grids stored in a compact binary file. The file
+ *   consists of a fixed length header, a sorted array of cell keys, and a
+ *   fixed length record for every key. Only cells in the grid (or the
+ *   spatial filter) are stored. Records are found by doing a binary search
+ *   on the keys so no other index is required. Files are created via
+ *   GridBuilder.createGridFile() and are read using memory mapped buffers so
+ *   a large grid can be shared by multiple processes without loading it into
+ *   the heap. Example:
+ <pre>
+    grid.createGridFile(shape, level, density, geom, numThreads, file);
+    GridFile gridFile = new GridFile(file);
+    Geometry geom = gridFile.getGeom(key);
+ </pre>
+ *   Header (128 bytes, big endian):
+ *   <pre>
+ *   int    - magic number ("KGRD")
+ *   int    - version
+ *   int    - shape
+ *   int    - level
+ *   int    - projection (SRID)
+ *   int    - number of cells per bounding box (1 or 2)
+ *   int    - max number of points per cell
+ *   int    - record size in bytes
+ *   double - grid size, x offset, row height, density
+ *   long   - number of records
+ *   </pre>
+ *   The header is followed by the cell keys (long), in ascending order, and
+ *   then the records in the same order as the keys. Each record consists of
+ *   the cell key (long, 0 if the cell wasn't generated), the number of points
+ *   (int), the number of points in the first polygon if the cell was split
+ *   at the dateline (int, 0 otherwise), and the vertices of the cell in WGS84
+ *   (lon0, lat0, lon1, lat1, ...).
+ *
+ ******************************************************************************/
+
+public class GridFile {
+
+    private static final int MAGIC = 0x4B475244; //KGRD
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 128;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int KEYS_PER_BUFFER = 1<<27; //1GB of keys per buffer
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+  /** Max number of cells in a file. Note that the keys are computed and
+   *  sorted in memory before a file is created, which takes up to
+   *  BYTES_PER_KEY bytes of heap per cell (about 32GB at MAX_RECORDS).
+   *  The GridBuilder checks the heap size before creating a file.
+   */
+    public static final long MAX_RECORDS = Integer.MAX_VALUE-8;
+
+  /** Peak heap used per cell to compute the keys of a new file */
+    public static final int BYTES_PER_KEY = 16;
+
+    private int shape;
+    private int level;
+    private int proj;
+    private int numTemplates;
+    private int maxPoints;
+    private int recordSize;
+    private double gridSize;
+    private double x0;
+    private double rowHeight;
+    private double density;
+    private long numRecords;
+    private int recordsPerBuffer;
+    private MappedByteBuffer[] buffers;
+    private MappedByteBuffer[] keyBuffers;
+    private long[] keys; //sorted keys used to write records
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to open a grid file for reading
+   */
+    public GridFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt()!=MAGIC) throw new IOException("Invalid grid file");
+            int version = header.getInt();
+            if (version!=VERSION) throw new IOException("Unsupported version: " + version);
+            shape = header.getInt();
+            level = header.getInt();
+            proj = header.getInt();
+            numTemplates = header.getInt();
+            maxPoints = header.getInt();
+            recordSize = header.getInt();
+            gridSize = header.getDouble();
+            x0 = header.getDouble();
+            rowHeight = header.getDouble();
+            density = header.getDouble();
+            numRecords = header.getLong();
+            map(channel, FileChannel.MapMode.READ_ONLY);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create a new grid file or to reopen a file that was partially
+   *  written. Called by the GridBuilder.
+   *  @param keys Sorted array of unique keys with a key for every cell that
+   *  will be written to the file. Records are allocated for every key.
+   *  @param resume If true, the file is reopened without modifying any of
+   *  the records so that a grid can be resumed from a checkpoint. Otherwise,
+   *  a new file is created.
+   *  @throws IOException if there isn't enough disk space for the file or if
+   *  the file that is being resumed was created for a different grid
+   */
+    GridFile(File file, int shape, int level, int proj, int numTemplates,
+        int maxPoints, long[] keys, double gridSize, double x0, double rowHeight,
+        double density, boolean resume) throws IOException {
+
+        this.shape = shape;
+        this.level = level;
+        this.proj = proj;
+        this.numTemplates = numTemplates;
+        this.maxPoints = maxPoints;
+        this.recordSize = getRecordSize(maxPoints);
+        this.gridSize = gridSize;
+        this.x0 = x0;
+        this.rowHeight = rowHeight;
+        this.density = density;
+        this.keys = keys;
+        this.numRecords = keys.length;
+        long size = getSize(numRecords, maxPoints);
+        if (resume){
+            open(file, size);
+            return;
+        }
+
+
+      //Check whether there is enough space for the file
+        File dir = file.getAbsoluteFile().getParentFile();
+        long space = dir==null ? 0 : dir.getUsableSpace();
+        if (space>0 && size>space) throw new IOException(
+            "Not enough disk space for " + file + ": the file requires " +
+            size + " bytes (" + space + " bytes available)");
+
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            raf.setLength(0);
+            raf.setLength(size); //records are zero-filled
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(shape);
+            header.putInt(level);
+            header.putInt(proj);
+            header.putInt(numTemplates);
+            header.putInt(maxPoints);
+            header.putInt(recordSize);
+            header.putDouble(gridSize);
+            header.putDouble(x0);
+            header.putDouble(rowHeight);
+            header.putDouble(density);
+            header.putLong(numRecords);
+            header.force();
+            map(channel, FileChannel.MapMode.READ_WRITE);
+
+
+          //Write keys
+            for (int i=0; i<keyBuffers.length; i++){
+                int offset = i*KEYS_PER_BUFFER;
+                keyBuffers[i].asLongBuffer().put(keys, offset, Math.min(KEYS_PER_BUFFER, keys.length-offset));
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+  /** Used to reopen a partially written file. Throws an IOException if the
+   *  header or the keys in the file don't match this grid.
+   */
+    private void open(File file, long size) throws IOException {
+        if (!file.exists()) throw new IOException("File not found: " + file);
+        String error = file + " was created for a different grid";
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            if (raf.length()!=size) throw new IOException(error);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt()!=MAGIC || header.getInt()!=VERSION ||
+                header.getInt()!=shape || header.getInt()!=level ||
+                header.getInt()!=proj || header.getInt()!=numTemplates ||
+                header.getInt()!=maxPoints || header.getInt()!=recordSize ||
+                header.getDouble()!=gridSize || header.getDouble()!=x0 ||
+                header.getDouble()!=rowHeight || header.getDouble()!=density ||
+                header.getLong()!=numRecords){
+                throw new IOException(error);
+            }
+            map(channel, FileChannel.MapMode.READ_WRITE);
+            for (int i=0; i<keys.length; i++){
+                long key = keyBuffers[i/KEYS_PER_BUFFER].getLong((i%KEYS_PER_BUFFER)*8);
+                if (key!=keys[i]) throw new IOException(error);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getRecordSize
+  //**************************************************************************
+  /** Returns the size of a record in bytes
+   *  @param maxPoints Max number of points per cell
+   */
+    static int getRecordSize(int maxPoints){
+        return RECORD_HEADER_SIZE + maxPoints*16;
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the size of a file in bytes
+   *  @param numRecords Number of cells
+   *  @param maxPoints Max number of points per cell
+   */
+    static long getSize(long numRecords, int maxPoints){
+        return HEADER_SIZE + numRecords*(8+getRecordSize(maxPoints));
+    }
+
+
+  //**************************************************************************
+  //** map
+  //**************************************************************************
+  /** Used to map the keys and the records into one or more buffers. Buffers
+   *  are limited to 2GB so large grids are split across multiple buffers.
+   *  Records never span buffers.
+   */
+    private void map(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+        int numKeyBuffers = (int) ((numRecords+KEYS_PER_BUFFER-1)/KEYS_PER_BUFFER);
+        keyBuffers = new MappedByteBuffer[numKeyBuffers];
+        for (int i=0; i<numKeyBuffers; i++){
+            long start = (long) i*KEYS_PER_BUFFER;
+            long n = Math.min(KEYS_PER_BUFFER, numRecords-start);
+            keyBuffers[i] = channel.map(mode, HEADER_SIZE+start*8, n*8);
+        }
+
+        long offset = HEADER_SIZE+numRecords*8;
+        recordsPerBuffer = Integer.MAX_VALUE/recordSize;
+        int numBuffers = (int) ((numRecords+recordsPerBuffer-1)/recordsPerBuffer);
+        buffers = new MappedByteBuffer[numBuffers];
+        for (int i=0; i<numBuffers; i++){
+            long start = (long) i*recordsPerBuffer;
+            long n = Math.min(recordsPerBuffer, numRecords-start);
+            buffers[i] = channel.map(mode, offset+start*recordSize, n*recordSize);
+        }
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to write a cell to the file. Safe to call from multiple threads
+   *  since every cell is written to a different record.
+   *  @throws IllegalArgumentException if the file doesn't have a record for
+   *  the cell or if the cell has more points than a record can hold
+   */
+    void put(Cell cell){
+        long key = cell.getKey();
+        int idx = Arrays.binarySearch(keys, key);
+        if (idx<0) throw new IllegalArgumentException("No record for cell " + key);
+        int numPoints = cell.getNumPoints();
+        if (numPoints>maxPoints) throw new IllegalArgumentException(
+            "Cell " + key + " has " + numPoints + " points (max is " + maxPoints + ")");
+
+        ByteBuffer buffer = buffers[idx/recordsPerBuffer];
+        int offset = (idx%recordsPerBuffer)*recordSize;
+        double[] coords = cell.getCoordinates();
+        buffer.putInt(offset+8, numPoints);
+        buffer.putInt(offset+12, cell.getNumParts()>1 ? cell.getNumPoints(0) : 0);
+        for (int i=0; i<numPoints*2; i++){
+            buffer.putDouble(offset+RECORD_HEADER_SIZE+i*8, coords[i]);
+        }
+        buffer.putLong(offset, key); //written last so partial records are ignored
+    }
+
+
+  //**************************************************************************
+  //** force
+  //**************************************************************************
+  /** Used to write any changes to disk
+   */
+    void force(){
+        for (MappedByteBuffer buffer : buffers) buffer.force();
+        for (MappedByteBuffer buffer : keyBuffers) buffer.force();
+    }
+
+
+    public int getShape(){
+        return shape;
+    }
+
+    public int getLevel(){
+        return level;
+    }
+
+    public int getProj(){
+        return proj;
+    }
+
+    public double getGridSize(){
+        return gridSize;
+    }
+
+    public double getDensity(){
+        return density;
+    }
+
+
+  //**************************************************************************
+  //** getNumRecords
+  //**************************************************************************
+  /** Returns the number of records in the file. Note that records are
+   *  allocated for every cell before the grid is generated so some records
+   *  may be empty (e.g. cells that could not be projected near the poles).
+   */
+    public long getNumRecords(){
+        return numRecords;
+    }
+
+
+  //**************************************************************************
+  //** contains
+  //**************************************************************************
+  /** Returns true if the file contains a cell for a given key
+   */
+    public boolean contains(long key){
+        return getRecordBuffer(key)!=null;
+    }
+
+
+  //**************************************************************************
+  //** getNumPoints
+  //**************************************************************************
+  /** Returns the number of vertices in a cell, including the closing vertex.
+   *  Returns 0 if the file doesn't contain the cell.
+   */
+    public int getNumPoints(long key){
+        ByteBuffer record = getRecordBuffer(key);
+        return record==null ? 0 : record.getInt(8);
+    }
+
+
+  //**************************************************************************
+  //** getCoordinates
+  //**************************************************************************
+  /** Returns a CoordinateSequence for a cell that reads coordinates directly
+   *  from the file (no copy). Cells that were split at the dateline include
+   *  the vertices of both polygons. Returns null if the file doesn't contain
+   *  the cell.
+   */
+    public CoordinateSequence getCoordinates(long key){
+        ByteBuffer record = getRecordBuffer(key);
+        if (record==null) return null;
+        return new MappedCoordinateSequence(getCoordinates(record, 0, record.getInt(8)));
+    }
+
+
+  //**************************************************************************
+  //** getGeom
+  //**************************************************************************
+  /** Returns a polygon for a cell in WGS84, or a multipolygon if the cell
+   *  was split at the dateline. The geometry is backed by the file (see
+   *  getCoordinates). Returns null if the file doesn't contain the cell.
+   */
+    public Geometry getGeom(long key){
+        ByteBuffer record = getRecordBuffer(key);
+        if (record==null) return null;
+        int numPoints = record.getInt(8);
+        int split = record.getInt(12);
+        if (split==0) return createPolygon(record, 0, numPoints);
+        return geometryFactory.createMultiPolygon(new Polygon[]{
+            createPolygon(record, 0, split),
+            createPolygon(record, split, numPoints-split)
+        });
+    }
+
+
+  //**************************************************************************
+  //** createPolygon
+  //**************************************************************************
+    private static Polygon createPolygon(ByteBuffer record, int start, int numPoints){
+        CoordinateSequence coords = new MappedCoordinateSequence(getCoordinates(record, start, numPoints));
+        return geometryFactory.createPolygon(geometryFactory.createLinearRing(coords), null);
+    }
+
+
+  //**************************************************************************
+  //** getRecord
+  //**************************************************************************
+  /** Returns the index of the record associated with a cell key using a
+   *  binary search on the keys. Returns -1 if the file doesn't contain the
+   *  key.
+   */
+    private long getRecord(long key){
+        long lo = 0;
+        long hi = numRecords-1;
+        while (lo<=hi){
+            long mid = (lo+hi)>>>1;
+            long k = keyBuffers[(int) (mid/KEYS_PER_BUFFER)].getLong((int) (mid%KEYS_PER_BUFFER)*8);
+            if (k<key) lo = mid+1;
+            else if (k>key) hi = mid-1;
+            else return mid;
+        }
+        return -1;
+    }
+
+
+  //**************************************************************************
+  //** getRecordBuffer
+  //**************************************************************************
+  /** Returns a view of the record associated with a cell. Returns null if
+   *  the file doesn't contain the cell.
+   */
+    private ByteBuffer getRecordBuffer(long key){
+        if (!CellKey.isValid(key) || CellKey.getShape(key)!=shape ||
+            CellKey.getLevel(key)!=level) return null;
+
+        long idx = getRecord(key);
+        if (idx<0) return null;
+        ByteBuffer buffer = buffers[(int) (idx/recordsPerBuffer)];
+        int offset = (int) (idx%recordsPerBuffer)*recordSize;
+        if (buffer.getLong(offset)!=key) return null;
+
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.limit(offset+recordSize);
+        return record.slice();
+    }
+
+
+  //**************************************************************************
+  //** getCoordinates
+  //**************************************************************************
+  /** Returns a view of a range of vertices in a record
+   */
+    private static DoubleBuffer getCoordinates(ByteBuffer record, int start, int numPoints){
+        ByteBuffer coords = record.duplicate();
+        coords.position(RECORD_HEADER_SIZE+start*16);
+        coords.limit(RECORD_HEADER_SIZE+(start+numPoints)*16);
+        return coords.slice().asDoubleBuffer();
+    }
+
+
+  //**************************************************************************
+  //** MappedCoordinateSequence
+  //**************************************************************************
+  /** Read-only, two dimensional CoordinateSequence backed by a DoubleBuffer
+   */
+    private static class MappedCoordinateSequence implements CoordinateSequence {
+
+        private DoubleBuffer coords;
+
+        public MappedCoordinateSequence(DoubleBuffer coords){
+            this.coords = coords;
+        }
+
+        public int getDimension(){
+            return 2;
+        }
+
+        public Coordinate getCoordinate(int i){
+            return getCoordinateCopy(i);
+        }
+
+        public Coordinate getCoordinateCopy(int i){
+            return new Coordinate(getX(i), getY(i));
+        }
+
+        public void getCoordinate(int i, Coordinate coord){
+            coord.x = getX(i);
+            coord.y = getY(i);
+        }
+
+        public double getX(int i){
+            return coords.get(i*2);
+        }
+
+        public double getY(int i){
+            return coords.get(i*2+1);
+        }
+
+        public double getOrdinate(int i, int ordinate){
+            switch (ordinate){
+                case X: return getX(i);
+                case Y: return getY(i);
+                default: return Double.NaN;
+            }
+        }
+
+        public int size(){
+            return coords.limit()/2;
+        }
+
+        public void setOrdinate(int i, int ordinate, double value){
+            throw new UnsupportedOperationException("Grid files are read-only");
+        }
+
+        public Coordinate[] toCoordinateArray(){
+            Coordinate[] arr = new Coordinate[size()];
+            for (int i=0; i<arr.length; i++) arr[i] = getCoordinateCopy(i);
+            return arr;
+        }
+
+        public Envelope expandEnvelope(Envelope env){
+            for (int i=0; i<size(); i++) env.expandToInclude(getX(i), getY(i));
+            return env;
+        }
+
+        public Object clone(){
+            return new MappedCoordinateSequence(coords.duplicate());
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.kartographia.grid;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+//******************************************************************************
+//**  GridMetrics
+//******************************************************************************
+/**
+ *   Used to collect runtime metrics while a grid is being generated (e.g.
+ *   number of cells, cells/sec, percent complete, time spent in each stage).
+ *   Metrics are collected by the GridBuilder when an instance of this class
+ *   is passed to the GridBuilder.setMetrics() method. Otherwise, no metrics
+ *   are collected and there is no overhead. Metrics can be monitored using a
+ *   Listener or via JMX. Example:
+ <pre>
+    GridMetrics metrics = new GridMetrics();
+    metrics.register("level9");
+    metrics.addListener(new GridMetrics.Listener(){
+        public void update(GridMetrics metrics){
+            System.out.println(metrics);
+        }
+    }, 10000);
+    grid.setMetrics(metrics);
+    grid.createGrid(shape, level, density, geom, numThreads, writer);
+ </pre>
+ *   Counters are updated by multiple threads using LongAdders so there is
+ *   little contention. Stage timings are in nanoseconds internally and are
+ *   reported in milliseconds, summed across all threads.
+ *
+ ******************************************************************************/
+
+public class GridMetrics implements GridMetricsMBean {
+
+    final LongAdder cells = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder border = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder boxes = new LongAdder();
+    final LongAdder enumerateTime = new LongAdder();
+    final LongAdder buildTime = new LongAdder();
+    final LongAdder transformTime = new LongAdder();
+    final LongAdder filterTime = new LongAdder();
+    final LongAdder callbackTime = new LongAdder();
+
+    private volatile long totalBoxes;
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile BatchQueue<?> queue;
+    private ObjectName objectName;
+    private Timer timer;
+    private HashMap<Listener, Long> listeners = new HashMap<>();
+
+
+  //**************************************************************************
+  //** Listener
+  //**************************************************************************
+  /** Used to receive periodic updates while a grid is being generated. The
+   *  update() method is called from a timer thread and one last time when
+   *  the grid is complete.
+   */
+    public static interface Listener {
+        public void update(GridMetrics metrics);
+    }
+
+
+  //**************************************************************************
+  //** addListener
+  //**************************************************************************
+  /** @param interval Number of milliseconds between updates
+   */
+    public synchronized void addListener(Listener listener, long interval){
+        listeners.put(listener, Math.max(interval, 1));
+    }
+
+
+  //**************************************************************************
+  //** register
+  //**************************************************************************
+  /** Used to register this class with the platform MBeanServer so that the
+   *  metrics can be monitored via JMX (e.g. JConsole or VisualVM)
+   *  @param name Unique name for the MBean
+   */
+    public synchronized void register(String name) throws Exception {
+        unregister();
+        objectName = new ObjectName("com.kartographia.grid:type=GridMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+
+
+  //**************************************************************************
+  //** unregister
+  //**************************************************************************
+  /** Used to remove this class from the platform MBeanServer and to stop
+   *  the listeners
+   */
+    public synchronized void unregister() throws Exception {
+        if (timer!=null){
+            timer.cancel();
+            timer = null;
+        }
+        if (objectName==null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        objectName = null;
+    }
+
+
+  //**************************************************************************
+  //** start
+  //**************************************************************************
+  /** Called by the GridBuilder before generating cells. Resets the counters
+   *  and starts the listeners.
+   *  @param totalBoxes Total number of bounding boxes in the grid. Used to
+   *  compute percent complete and the ETA.
+   */
+    synchronized void start(long totalBoxes){
+        for (LongAdder counter : new LongAdder[]{cells, rejected, border, duplicates,
+            boxes, enumerateTime, buildTime, transformTime, filterTime, callbackTime}){
+            counter.reset();
+        }
+        this.totalBoxes = totalBoxes;
+        this.startTime = System.nanoTime();
+        this.endTime = 0;
+
+        if (timer!=null) timer.cancel();
+        timer = null;
+        if (!listeners.isEmpty()){
+            timer = new Timer(true);
+            for (final Map.Entry<Listener, Long> entry : listeners.entrySet()){
+                timer.schedule(new TimerTask(){
+                    public void run(){
+                        entry.getKey().update(GridMetrics.this);
+                    }
+                }, entry.getValue(), entry.getValue());
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+  /** Called by the GridBuilder after all the cells have been generated
+   */
+    synchronized void stop(){
+        endTime = System.nanoTime();
+        if (timer!=null){
+            timer.cancel();
+            timer = null;
+        }
+        for (Listener listener : listeners.keySet()){
+            listener.update(this);
+        }
+    }
+
+
+  //**************************************************************************
+  //** setQueue
+  //**************************************************************************
+  /** Used to monitor the number of batches in a queue (e.g. the queue used
+   *  by the GridCellWriter)
+   */
+    void setQueue(BatchQueue<?> queue){
+        this.queue = queue;
+    }
+
+
+  //**************************************************************************
+  //** getCells
+  //**************************************************************************
+  /** Returns the number of cells returned to the caller
+   */
+    public long getCells(){
+        return cells.sum();
+    }
+
+
+  //**************************************************************************
+  //** getCellsPerSecond
+  //**************************************************************************
+    public double getCellsPerSecond(){
+        long t = getElapsedTime();
+        return t==0 ? 0 : getCells()/(t/1000.0);
+    }
+
+
+  //**************************************************************************
+  //** getRejectedCells
+  //**************************************************************************
+  /** Returns the number of cells that were rejected by the spatial filter.
+   *  Cells in blocks that are skipped entirely are not counted.
+   */
+    public long getRejectedCells(){
+        return rejected.sum();
+    }
+
+
+  //**************************************************************************
+  //** getBorderCells
+  //**************************************************************************
+  /** Returns the number of cells that were skipped because they are
+   *  generated on the other side of the grid (dateline)
+   */
+    public long getBorderCells(){
+        return border.sum();
+    }
+
+
+  //**************************************************************************
+  //** getDuplicates
+  //**************************************************************************
+  /** Returns the number of cells that were not saved because they already
+   *  exist in the database (see GridCellWriter)
+   */
+    public long getDuplicates(){
+        return duplicates.sum();
+    }
+
+
+  //**************************************************************************
+  //** getQueueDepth
+  //**************************************************************************
+  /** Returns the number of batches waiting to be saved to the database
+   */
+    public int getQueueDepth(){
+        BatchQueue<?> queue = this.queue;
+        return queue==null ? 0 : queue.size();
+    }
+
+
+  //**************************************************************************
+  //** getPercentComplete
+  //**************************************************************************
+  /** Returns the percentage of bounding boxes in the grid that have been
+   *  processed (0-100)
+   */
+    public double getPercentComplete(){
+        if (totalBoxes<=0) return endTime>0 ? 100 : 0;
+        return Math.min(100.0, boxes.sum()*100.0/totalBoxes);
+    }
+
+
+  //**************************************************************************
+  //** getElapsedTime
+  //**************************************************************************
+  /** Returns the number of milliseconds since the grid was started
+   */
+    public long getElapsedTime(){
+        if (startTime==0) return 0;
+        long t = endTime>0 ? endTime : System.nanoTime();
+        return (t-startTime)/1000000;
+    }
+
+
+  //**************************************************************************
+  //** getETA
+  //**************************************************************************
+  /** Returns the estimated number of milliseconds until the grid is complete.
+   *  Returns -1 if the time can't be estimated.
+   */
+    public long getETA(){
+        if (endTime>0) return 0;
+        double p = getPercentComplete();
+        if (p<=0) return -1;
+        return Math.round(getElapsedTime()*(100-p)/p);
+    }
+
+
+  //**************************************************************************
+  //** getEnumerateTime
+  //**************************************************************************
+  /** Returns the time spent enumerating and testing blocks of bounding boxes
+   *  against the spatial filter, in milliseconds
+   */
+    public long getEnumerateTime(){
+        return enumerateTime.sum()/1000000;
+    }
+
+
+  //**************************************************************************
+  //** getBuildTime
+  //**************************************************************************
+  /** Returns the time spent computing cell vertices, in milliseconds. Does
+   *  not include the time spent in the projection transform.
+   */
+    public long getBuildTime(){
+        return buildTime.sum()/1000000;
+    }
+
+
+  //**************************************************************************
+  //** getTransformTime
+  //**************************************************************************
+  /** Returns the time spent converting projected coordinates to WGS84, in
+   *  milliseconds
+   */
+    public long getTransformTime(){
+        return transformTime.sum()/1000000;
+    }
+
+
+  //**************************************************************************
+  //** getFilterTime
+  //**************************************************************************
+  /** Returns the time spent testing individual cells against the spatial
+   *  filter, in milliseconds
+   */
+    public long getFilterTime(){
+        return filterTime.sum()/1000000;
+    }
+
+
+  //**************************************************************************
+  //** getCallbackTime
+  //**************************************************************************
+  /** Returns the time spent in the callback, in milliseconds
+   */
+    public long getCallbackTime(){
+        return callbackTime.sum()/1000000;
+    }
+
+
+  //**************************************************************************
+  //** toString
+  //**************************************************************************
+  /** Returns a summary of the metrics
+   */
+    public String toString(){
+        long eta = getETA();
+        return String.format(
+            "%,d cells (%,.0f cells/sec) %.1f%% complete, ETA: %s, " +
+            "rejected: %,d, border: %,d, duplicates: %,d, queue: %d",
+            getCells(), getCellsPerSecond(), getPercentComplete(),
+            eta<0 ? "?" : (eta/1000) + "s",
+            getRejectedCells(), getBorderCells(), getDuplicates(), getQueueDepth()
+        );
+    }
+}
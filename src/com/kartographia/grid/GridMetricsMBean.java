@@ -0,0 +1,26 @@
+package com.kartographia.grid;
+
+//******************************************************************************
+//**  GridMetricsMBean
+//******************************************************************************
+/**
+ *   JMX interface for the GridMetrics class
+ *
+ ******************************************************************************/
+
+public interface GridMetricsMBean {
+    public long getCells();
+    public double getCellsPerSecond();
+    public long getRejectedCells();
+    public long getBorderCells();
+    public long getDuplicates();
+    public int getQueueDepth();
+    public double getPercentComplete();
+    public long getElapsedTime();
+    public long getETA();
+    public long getEnumerateTime();
+    public long getBuildTime();
+    public long getTransformTime();
+    public long getFilterTime();
+    public long getCallbackTime();
+}
@@ -38,6 +38,9 @@ public class Main {
         if (args.containsKey("-test")){
             test(args);
         }
+        else if (args.containsKey("-benchmark")){
+            Benchmark.run(args);
+        }
         else{
             createGrid(args);
         }
@@ -53,10 +56,24 @@ public class Main {
    *  @param args Command line arguments:
    *  -config Path to a config file (json) containing database connection info
    *  -shape Shape of individual grid cells (square, hex, diamond)
-   *  -level Grid level (1-9)
+   *  -level Grid level (1-12)
    *  -proj Grid projection. Accepts EPSG codes and keywords (google, behrmann)
    *  -aoi Spatial filter. Can be a shapefile or a database query
    *  -t Number of threads
+   *  -batch Number of cells to insert per batch
+   *  -writers Number of threads (database connections) used to insert cells
+   *  -checkpoint Path to a file used to record progress. If the file exists,
+   *  bands that were completed in a previous run are skipped. Not supported
+   *  with GeoJSON and WKB output files since cells that were exported before
+   *  the process died can't be recovered from a partially written file.
+   *  -shard Used to generate a slice of the grid (e.g. "0/4", "1/4", "2/4"
+   *  and "3/4" to split a grid across 4 processes)
+   *  -dateline Use "split" to split cells that cross the dateline into
+   *  multipolygons. By default ("extend"), cells extend beyond 180 degrees.
+   *  -out Path to an output file. If specified, cells are written to the
+   *  file instead of the database. Supports newline delimited GeoJSON (e.g.
+   *  "grid.geojson"), hex WKB ("grid.wkb"), and grid files ("grid.grid").
+   *  GeoJSON and WKB files can be compressed (e.g. "grid.geojson.gz").
    */
     private static void createGrid(HashMap<String, String> args) throws Exception {
 
@@ -67,6 +84,10 @@ public class Main {
 
 
 
+      //Get output file (optional)
+        String out = args.get("-out");
+
+
       //Get config file
         javaxt.io.File configFile = (args.containsKey("-config")) ?
             getFile(args.get("-config"), jarFile) :
@@ -77,36 +98,43 @@ public class Main {
                 configFile = new javaxt.io.File(jar.getFile().getParentFile().getParentFile(), "config.json");
             }
             if (!configFile.exists()) {
-                System.out.println("Could not find config file. Use the \"-config\" parameter to specify a path to a config");
-                return;
+                if (out==null){
+                    System.out.println("Could not find config file. Use the \"-config\" parameter to specify a path to a config");
+                    return;
+                }
+                configFile = null; //database is optional when writing to a file
             }
         }
 
 
-      //Parse config file
-        JSONObject config = new JSONObject(configFile.getText());
+        javaxt.sql.Database database = null;
+        if (configFile!=null){
 
+          //Parse config file
+            JSONObject config = new JSONObject(configFile.getText());
 
-      //Get database info
-        JSONObject json = config.get("database").toJSONObject();
-        javaxt.sql.Database database = new javaxt.sql.Database();
-        database.setDriver(json.get("driver").toString());
-        database.setHost(json.get("host").toString());
-        database.setName(json.get("name").toString());
-        database.setUserName(json.get("username").toString());
-        database.setPassword(json.get("password").toString());
-        if (json.has("maxConnections")){
-            database.setConnectionPoolSize(json.get("maxConnections").toInteger());
-        }
+
+          //Get database info
+            JSONObject json = config.get("database").toJSONObject();
+            database = new javaxt.sql.Database();
+            database.setDriver(json.get("driver").toString());
+            database.setHost(json.get("host").toString());
+            database.setName(json.get("name").toString());
+            database.setUserName(json.get("username").toString());
+            database.setPassword(json.get("password").toString());
+            if (json.has("maxConnections")){
+                database.setConnectionPoolSize(json.get("maxConnections").toInteger());
+            }
 
 
 
-      //Initialize connection pool
-        database.initConnectionPool();
+          //Initialize connection pool
+            database.initConnectionPool();
 
 
-      //Initialize GridCell class
-        Model.init(GridCell.class, database.getConnectionPool());
+          //Initialize GridCell class
+            Model.init(GridCell.class, database.getConnectionPool());
+        }
 
 
 
@@ -138,34 +166,147 @@ public class Main {
                     createTempTable(from);
                 }
                 else{
+                    if (database==null) throw new IllegalArgumentException(
+                    "A database is required to query the aoi. Use the \"-config\" parameter.");
                     geom = getGeometry(sql, database);
                 }
 
             }
         }
         int numThreads = args.containsKey("-t") ? Integer.parseInt(args.get("-t")) : 4;
+        int batchSize = args.containsKey("-batch") ? Integer.parseInt(args.get("-batch")) : 1000;
+        int numWriters = args.containsKey("-writers") ? Integer.parseInt(args.get("-writers")) : 4;
+        if (database!=null){
+            numWriters = Math.min(numWriters, database.getConnectionPool().getMaxConnections());
+        }
 
 
 
 
       //Instantiate GridBuilder and generate grid
         GridBuilder grid = new GridBuilder(proj);
-        if (args.containsKey("-clear")) clear(shape, level, grid.getSRID(), geom, database);
-        grid.createGrid(shape, level, 1.0, geom, numThreads,
-            new GridBuilder.CallBack() {
-
-                public synchronized void add(GridCell cell){
-                    try{
-                        cell.save();
-                    }
-                    catch(Exception e){
-                        //probably a duplicate
-                    }
-                }
+        GridCheckpoint checkpoint = null;
+        if (args.containsKey("-checkpoint")){
+            if (out!=null && !out.toLowerCase().endsWith(".grid")){
+                System.out.println("The -checkpoint option is not supported with GeoJSON " +
+                "and WKB files. Use a grid file (.grid) or a database to resume a grid.");
+                return;
+            }
+            checkpoint = new GridCheckpoint(new java.io.File(args.get("-checkpoint")));
+            grid.setCheckpoint(checkpoint);
+        }
+        String dateline = args.get("-dateline");
+        if (dateline!=null){
+            if (dateline.equalsIgnoreCase("split")){
+                grid.setDatelineMode(GridBuilder.SPLIT_DATELINE);
+            }
+            else if (dateline.equalsIgnoreCase("extend")){
+                grid.setDatelineMode(GridBuilder.EXTEND_DATELINE);
+            }
+            else{
+                System.out.println("Invalid dateline: \"" + dateline + "\". " +
+                "Use \"-dateline split\" or \"-dateline extend\"");
+                return;
+            }
+        }
+        String shard = args.get("-shard");
+        if (shard!=null){
+            int[] arr = parseShard(shard);
+            if (arr==null){
+                System.out.println("Invalid shard: \"" + shard + "\". " +
+                "Use \"-shard i/n\" where i is a number from 0 to n-1 (e.g. \"-shard 0/4\")");
+                return;
+            }
+            if (out!=null && out.toLowerCase().endsWith(".grid")){
+                System.out.println("The -shard option is not supported with grid files (.grid)");
+                return;
+            }
+            grid.setShard(arr[0], arr[1]);
+        }
+        if (args.containsKey("-clear")){
+            if (shard!=null){
+                console.log("Ignoring -clear option. Cannot clear a shard.");
+            }
+            else{
+                if (out==null) clear(shape, level, grid.getSRID(), geom, database);
+                else new java.io.File(out).delete();
+                if (checkpoint!=null) checkpoint.delete();
+            }
+        }
+        else if (checkpoint!=null && checkpoint.getFile().exists()){
+            console.log("Resuming grid from " + checkpoint.getFile());
+        }
+        long numCells = grid.estimateCellCount(shape, level, geom);
+        console.log("Estimated " + numCells + " cells (" +
+        (grid.estimateOutputSize(shape, level, 1.0, geom)/(1024*1024)) + " MB)");
+
+
+      //Report progress every 10 seconds. Metrics are also available via JMX.
+        GridMetrics metrics = new GridMetrics();
+        metrics.addListener(new GridMetrics.Listener(){
+            public void update(GridMetrics metrics){
+                console.log(metrics);
+            }
+        }, 10000);
+        try{ metrics.register("shape=" + shape + ",level=" + level); }
+        catch(Exception e){
+            console.log("Failed to register metrics with JMX: " + e.getMessage());
+        }
+        grid.setMetrics(metrics);
+
 
-                public void done(){}
+      //Write cells to a file
+        try{
+            if (out!=null){
+                java.io.File file = new java.io.File(out);
+                if (out.toLowerCase().endsWith(".grid")){
+                    grid.createGridFile(shape, level, 1.0, geom, numThreads, file);
+                    console.log("Saved " + metrics.getCells() + " cells to " + file);
+                }
+                else{
+                    GridCellExporter exporter = new GridCellExporter(file);
+                    grid.createGrid(shape, level, 1.0, geom, numThreads, exporter);
+                    if (exporter.getError()!=null) throw exporter.getError();
+                    console.log("Exported " + exporter.getCount() + " cells to " + file);
+                }
+                return;
             }
-        );
+
+
+          //Insert cells into the database
+            batchSize = (int) Math.max(1, Math.min(batchSize, numCells/numWriters));
+            GridCellWriter writer = new GridCellWriter(database, batchSize, numWriters);
+            writer.setMetrics(metrics);
+            grid.createGrid(shape, level, 1.0, geom, numThreads, writer);
+            console.log(
+                "Inserted " + writer.getInserts() + " cells (" +
+                writer.getDuplicates() + " duplicates, " + writer.getErrors() + " errors)"
+            );
+        }
+        finally{
+            metrics.unregister();
+        }
+    }
+
+
+  //**************************************************************************
+  //** parseShard
+  //**************************************************************************
+  /** Used to parse the -shard option (e.g. "1/4"). Returns the index and
+   *  number of shards or null if the string is invalid.
+   */
+    private static int[] parseShard(String shard){
+        String[] arr = shard.split("/");
+        if (arr.length!=2) return null;
+        try{
+            int index = Integer.parseInt(arr[0].trim());
+            int numShards = Integer.parseInt(arr[1].trim());
+            if (numShards<1 || index<0 || index>=numShards) return null;
+            return new int[]{index, numShards};
+        }
+        catch(NumberFormatException e){
+            return null;
+        }
     }
 
 
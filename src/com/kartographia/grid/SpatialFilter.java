@@ -0,0 +1,188 @@
+package com.kartographia.grid;
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.prep.*;
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.index.chain.*;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import java.util.*;
+
+//******************************************************************************
+//**  SpatialFilter
+//******************************************************************************
+/**
+ *   Used to test whether grid cells intersect an area of interest (AOI). The
+ *   AOI boundary is indexed so that cells that don't touch the boundary can
+ *   be accepted or rejected with a single point-in-polygon test. Cells that
+ *   touch the boundary are tested against prepared geometries for the parts
+ *   of the AOI found in the vicinity of the cell (via an STRtree). Instances
+ *   of this class are thread-safe. Each thread gets its own set of prepared
+ *   geometries to avoid contention.
+ *
+ ******************************************************************************/
+
+class SpatialFilter {
+
+    private Envelope envelope;
+    private Geometry[] parts;
+    private STRtree partIndex;
+    private STRtree boundaryIndex;
+    private IndexedPointInAreaLocator locator;
+    private ThreadLocal<PreparedGeometry[]> preparedParts = new ThreadLocal<PreparedGeometry[]>(){
+        protected PreparedGeometry[] initialValue(){
+            return new PreparedGeometry[parts.length];
+        }
+    };
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param geom Area of interest in WGS84 (lon, lat)
+   */
+    public SpatialFilter(Geometry geom){
+        envelope = geom.getEnvelopeInternal();
+
+
+      //Index individual parts of the AOI
+        parts = new Geometry[geom.getNumGeometries()];
+        partIndex = new STRtree();
+        for (int i=0; i<parts.length; i++){
+            parts[i] = geom.getGeometryN(i);
+            partIndex.insert(parts[i].getEnvelopeInternal(), i);
+        }
+        partIndex.build();
+
+
+      //Index the boundary of polygonal AOIs using monotone chains
+        if (geom instanceof Polygonal){
+            boundaryIndex = new STRtree();
+            for (int i=0; i<parts.length; i++){
+                Geometry part = parts[i];
+                if (!(part instanceof Polygon)) continue;
+                Polygon polygon = (Polygon) part;
+                addRing(polygon.getExteriorRing());
+                for (int j=0; j<polygon.getNumInteriorRing(); j++){
+                    addRing(polygon.getInteriorRingN(j));
+                }
+            }
+            boundaryIndex.build();
+
+            locator = new IndexedPointInAreaLocator(geom);
+            locator.locate(new Coordinate(envelope.getMinX(), envelope.getMinY())); //build index
+        }
+    }
+
+
+  //**************************************************************************
+  //** intersects
+  //**************************************************************************
+  /** Returns true if the given geometry intersects the AOI
+   */
+    public boolean intersects(Geometry geom){
+        Envelope env = geom.getEnvelopeInternal();
+        if (!envelope.intersects(env)) return false;
+
+
+      //If the AOI boundary doesn't pass through the envelope, the geometry is
+      //either entirely inside or entirely outside the AOI
+        if (locator!=null && !touchesBoundary(env)){
+            return locator.locate(geom.getCoordinate())!=Location.EXTERIOR;
+        }
+
+
+      //Test parts of the AOI that overlap the geometry
+        for (Object obj : partIndex.query(env)){
+            if (getPreparedPart((Integer) obj).intersects(geom)) return true;
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** intersects
+  //**************************************************************************
+  /** Used to test a polygon defined by a packed array of coordinates (x0, y0,
+   *  x1, y1, ...) without creating a geometry. Returns 1 if the polygon
+   *  intersects the AOI and 0 if it doesn't. Returns -1 if the polygon is in
+   *  the vicinity of the AOI boundary, in which case the polygon should be
+   *  tested using one of the other intersects() methods.
+   */
+    public int intersects(double[] coords, int numPoints){
+        double minX = coords[0], maxX = minX;
+        double minY = coords[1], maxY = minY;
+        for (int i=1; i<numPoints; i++){
+            double x = coords[i*2];
+            double y = coords[i*2+1];
+            if (x<minX) minX = x; else if (x>maxX) maxX = x;
+            if (y<minY) minY = y; else if (y>maxY) maxY = y;
+        }
+        if (minX>envelope.getMaxX() || maxX<envelope.getMinX() ||
+            minY>envelope.getMaxY() || maxY<envelope.getMinY()) return 0;
+
+        if (locator==null) return -1;
+        Envelope env = new Envelope(minX, maxX, minY, maxY);
+        if (touchesBoundary(env)) return -1;
+        return locator.locate(new Coordinate(coords[0], coords[1]))!=Location.EXTERIOR ? 1 : 0;
+    }
+
+
+  //**************************************************************************
+  //** contains
+  //**************************************************************************
+  /** Returns true if the given geometry is entirely inside the AOI
+   */
+    public boolean contains(Geometry geom){
+        Envelope env = geom.getEnvelopeInternal();
+        if (!envelope.contains(env)) return false;
+
+        if (locator!=null && !touchesBoundary(env)){
+            return locator.locate(geom.getCoordinate())==Location.INTERIOR;
+        }
+
+        for (Object obj : partIndex.query(env)){
+            if (getPreparedPart((Integer) obj).contains(geom)) return true;
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** touchesBoundary
+  //**************************************************************************
+  /** Returns true if a segment of the AOI boundary overlaps the envelope
+   */
+    private boolean touchesBoundary(final Envelope env){
+        final boolean[] found = new boolean[]{false};
+        MonotoneChainSelectAction action = new MonotoneChainSelectAction(){
+            public void select(MonotoneChain mc, int start){
+                found[0] = true;
+            }
+        };
+        for (Object obj : boundaryIndex.query(env)){
+            ((MonotoneChain) obj).select(env, action);
+            if (found[0]) return true;
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** getPreparedPart
+  //**************************************************************************
+    private PreparedGeometry getPreparedPart(int i){
+        PreparedGeometry[] arr = preparedParts.get();
+        if (arr[i]==null) arr[i] = PreparedGeometryFactory.prepare(parts[i]);
+        return arr[i];
+    }
+
+
+  //**************************************************************************
+  //** addRing
+  //**************************************************************************
+    private void addRing(LineString ring){
+        for (Object obj : MonotoneChainBuilder.getChains(ring.getCoordinates())){
+            MonotoneChain chain = (MonotoneChain) obj;
+            boundaryIndex.insert(chain.getEnvelope(), chain);
+        }
+    }
+}